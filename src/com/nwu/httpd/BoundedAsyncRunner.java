@@ -0,0 +1,284 @@
+/**       
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nwu.httpd.NanoHTTPD.AsyncRunner;
+import com.nwu.httpd.NanoHTTPD.ClientHandler;
+import com.nwu.httpd.NanoHTTPD.Response;
+
+/**
+ * Threading strategy backed by a bounded pool of worker threads and a bounded
+ * queue of accepted connections waiting for a worker.
+ * 
+ * When both the workers and the queue are exhausted the configured
+ * {@link OverloadPolicy} decides what happens to the newly accepted
+ * connection.
+ * 
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class BoundedAsyncRunner implements AsyncRunner {
+	/**
+	 * What to do with a new connection when there is no free worker nor
+	 * space left on the queue.
+	 * <br><br>
+	 * BLOCK and SHED_OLDEST_IDLE only apply to the blocking engine. With the
+	 * selector engine idle connections don't hold a worker (shedding one
+	 * frees nothing) and blocking would stall the selector thread, and so
+	 * the I/O of every connection, so the request is always rejected.
+	 */
+	public enum OverloadPolicy {
+		/**
+		 * Answer with 503 Service Unavailable and close the connection.
+		 */
+		REJECT,
+		/**
+		 * Block the acceptor thread until there is space on the queue.
+		 */
+		BLOCK,
+		/**
+		 * Close the oldest idle keep-alive connection to make room. If there
+		 * isn't one the connection is rejected.
+		 */
+		SHED_OLDEST_IDLE
+	}
+
+	public static final int DEFAULT_CORE_WORKERS = 16;
+	public static final int DEFAULT_MAX_WORKERS = 256;
+	public static final int DEFAULT_QUEUE_SIZE = 512;
+	
+	/**
+	 * Time (in milliseconds) to wait for a freed worker after shedding an
+	 * idle connection.
+	 */
+	protected static final long SHED_WAIT = 250;
+	
+	protected final ThreadPoolExecutor executor;
+	protected final OverloadPolicy policy;
+	protected final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
+	
+	protected final AtomicLong requestCount = new AtomicLong();
+	protected final AtomicLong rejectedCount = new AtomicLong();
+	protected final AtomicLong shedCount = new AtomicLong();
+	
+	/**
+	 * Creates a runner with the default sizes and rejecting with 503 when
+	 * overloaded.
+	 */
+	public BoundedAsyncRunner() {
+		this(DEFAULT_CORE_WORKERS, DEFAULT_MAX_WORKERS, DEFAULT_QUEUE_SIZE, OverloadPolicy.REJECT);
+	}
+	
+	/**
+	 * Creates a runner.
+	 * 
+	 * @param coreWorkers The number of workers kept alive even when idle (at least 1).
+	 * @param maxWorkers The maximum number of workers.
+	 * @param queueSize The maximum number of accepted connections waiting for a worker.
+	 * @param policy What to do when both workers and queue are exhausted.
+	 */
+	public BoundedAsyncRunner(int coreWorkers, int maxWorkers, int queueSize, OverloadPolicy policy) {
+		if (coreWorkers < 1 || maxWorkers < coreWorkers || queueSize < 1) {
+			throw new IllegalArgumentException("Invalid worker pool sizes: core = " + coreWorkers + ", max = " + maxWorkers + ", queue = " + queueSize);
+		}
+		
+		this.policy = (policy == null) ? OverloadPolicy.REJECT : policy;
+		this.executor = new ThreadPoolExecutor(coreWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicLong count = new AtomicLong();
+					
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r);
+						t.setDaemon(true);
+						t.setName("NanoHttpd Request Worker (#" + count.incrementAndGet() + ")");
+						return t;
+					}
+				});
+	}
+
+	@Override
+	public void closeAll() {
+		// copy of the set for concurrency
+		for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+			clientHandler.close();
+		}
+	}
+
+	@Override
+	public void closed(ClientHandler clientHandler) {
+		this.running.remove(clientHandler);
+	}
+
+	@Override
+	public void exec(ClientHandler clientHandler) {
+		this.requestCount.incrementAndGet();
+		this.running.add(clientHandler);
+		try {
+			this.executor.execute(clientHandler);
+		} catch (RejectedExecutionException e) {
+			overloaded(clientHandler);
+		}
+	}
+	
+	/**
+	 * Applies the overload policy to a connection that couldn't be handed
+	 * to a worker nor queued.
+	 * 
+	 * @param clientHandler The connection.
+	 */
+	protected void overloaded(ClientHandler clientHandler) {
+		// dispatched by a selector thread (see OverloadPolicy)
+		boolean selector = clientHandler instanceof NanoHTTPD.SelectorClientHandler;
+		if (!this.executor.isShutdown() && !selector) {
+			switch (this.policy) {
+			case BLOCK:
+				try {
+					this.executor.getQueue().put(clientHandler);
+					return;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case SHED_OLDEST_IDLE:
+				if (shedOldestIdle()) {
+					try {
+						if (this.executor.getQueue().offer(clientHandler, SHED_WAIT, TimeUnit.MILLISECONDS)) return;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		
+		this.running.remove(clientHandler);
+		this.rejectedCount.incrementAndGet();
+		clientHandler.reject(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Server too busy, try again later.");
+	}
+	
+	/**
+	 * Closes the keep-alive connection that has been idle for longer.
+	 * 
+	 * @return True if a connection was closed. False otherwise.
+	 */
+	protected boolean shedOldestIdle() {
+		ClientHandler oldest = null;
+		long oldestSince = Long.MAX_VALUE;
+		
+		for (ClientHandler clientHandler : this.running) {
+			long since = clientHandler.getIdleSince();
+			if (clientHandler.isIdleKeepAlive() && since < oldestSince) {
+				oldest = clientHandler;
+				oldestSince = since;
+			}
+		}
+		
+		if (oldest != null) {
+			oldest.close();
+			this.shedCount.incrementAndGet();
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Stops the workers. The runner can't be used afterwards.
+	 */
+	public void shutdown() {
+		closeAll();
+		this.executor.shutdownNow();
+	}
+
+	public OverloadPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * @return The number of accepted connections waiting for a worker.
+	 */
+	public int getQueueDepth() {
+		return this.executor.getQueue().size();
+	}
+	
+	public int getQueueCapacity() {
+		return this.executor.getQueue().size() + this.executor.getQueue().remainingCapacity();
+	}
+	
+	/**
+	 * @return The number of workers currently handling a connection.
+	 */
+	public int getActiveWorkers() {
+		return this.executor.getActiveCount();
+	}
+	
+	public int getPoolSize() {
+		return this.executor.getPoolSize();
+	}
+	
+	public int getLargestPoolSize() {
+		return this.executor.getLargestPoolSize();
+	}
+	
+	public int getCoreWorkers() {
+		return this.executor.getCorePoolSize();
+	}
+	
+	public int getMaxWorkers() {
+		return this.executor.getMaximumPoolSize();
+	}
+	
+	/**
+	 * @return The number of connections currently queued or handled.
+	 */
+	public int getOpenConnections() {
+		return this.running.size();
+	}
+	
+	public long getRequestCount() {
+		return this.requestCount.get();
+	}
+	
+	/**
+	 * @return The number of connections answered with 503.
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+	
+	/**
+	 * @return The number of idle keep-alive connections closed to make room.
+	 */
+	public long getShedCount() {
+		return this.shedCount.get();
+	}
+}
@@ -40,10 +40,13 @@ public class Codes {
 	 */
 	public static final IStatus
 	HTTP_OK = com.nwu.httpd.NanoHTTPD.Response.Status.OK,
+	HTTP_PARTIALCONTENT = com.nwu.httpd.NanoHTTPD.Response.Status.PARTIAL_CONTENT,
 	HTTP_REDIRECT = com.nwu.httpd.NanoHTTPD.Response.Status.REDIRECT,
+	HTTP_NOTMODIFIED = com.nwu.httpd.NanoHTTPD.Response.Status.NOT_MODIFIED,
 	HTTP_FORBIDDEN = com.nwu.httpd.NanoHTTPD.Response.Status.FORBIDDEN,
 	HTTP_NOTFOUND = com.nwu.httpd.NanoHTTPD.Response.Status.NOT_FOUND,
 	HTTP_BADREQUEST = com.nwu.httpd.NanoHTTPD.Response.Status.BAD_REQUEST,
+	HTTP_RANGENOTSATISFIABLE = com.nwu.httpd.NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
 	HTTP_INTERNALERROR = com.nwu.httpd.NanoHTTPD.Response.Status.INTERNAL_ERROR;
 
 	/**
@@ -67,6 +70,7 @@ public class Codes {
 			"txt		text/plain "+
 			"asc		text/plain "+
 			"css		text/css "+
+			"js		text/javascript "+
 			"gif		image/gif "+
 			"jpg		image/jpeg "+
 			"jpeg		image/jpeg "+
@@ -0,0 +1,563 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.nwu.httpd.NanoHTTPD.ClientHandler;
+import com.nwu.util.TimerWheel;
+
+/**
+ * Keeps track of the open connections of a server. It limits the number of
+ * open connections and of requests served by each one and closes the
+ * connections that:
+ * <ul>
+ *  <li>don't send a complete request header within the header timeout
+ *  (trickling bytes doesn't extend it);</li>
+ *  <li>stay blocked on a read, while a request is being handled (e.g. reading
+ *  the body), for longer than the body timeout;</li>
+ *  <li>stay idle between keep-alive requests for longer than the idle timeout.</li>
+ * </ul>
+ * The deadlines are kept on a single timer wheel advanced by a reaper thread
+ * (instead of a read timeout per socket) and the idle connections on a least
+ * recently active list so that, when the number of open connections
+ * approaches the limit, the connections idle for longer are closed first to
+ * make room. If there isn't any idle connection to close a new connection is
+ * answered with 503.
+ * <br><br>
+ * The settings can be changed while the server is running. Timeouts are in
+ * milliseconds, 0 for none and {@link #SERVER_TIMEOUT} (the default) for the
+ * timeout the server was started with.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class ConnectionManager {
+	/**
+	 * The timeout granularity, in milliseconds.
+	 */
+	public static final long TICK = 100;
+
+	/**
+	 * Use the timeout the server was started with.
+	 */
+	public static final int SERVER_TIMEOUT = -1;
+
+	protected enum Phase {
+		/**
+		 * Accepted but not yet handled (e.g. waiting for a worker).
+		 */
+		NEW,
+		/**
+		 * Receiving a request header.
+		 */
+		HEADER,
+		/**
+		 * Handling a request.
+		 */
+		BUSY,
+		/**
+		 * Waiting for the next keep-alive request.
+		 */
+		IDLE,
+		CLOSED
+	}
+
+	/**
+	 * The state of a connection, scheduled on the timer wheel.
+	 */
+	public static class Connection extends TimerWheel.Node {
+		protected final ClientHandler clientHandler;
+		protected Phase phase = Phase.NEW;
+		protected Connection prevIdle;
+		protected Connection nextIdle;
+		protected boolean tracked;
+
+		/**
+		 * The tick since the connection is blocked on a read (0 if it isn't).
+		 */
+		protected volatile long readingSince;
+
+		protected Connection(ClientHandler clientHandler) {
+			this.clientHandler = clientHandler;
+		}
+	}
+
+	/**
+	 * Records, on the connection, when a read blocks so it can be timed out
+	 * by the reaper.
+	 */
+	protected class TrackedInputStream extends FilterInputStream {
+		protected final Connection connection;
+
+		protected TrackedInputStream(InputStream in, Connection connection) {
+			super(in);
+			this.connection = connection;
+		}
+
+		@Override
+		public int read() throws IOException {
+			connection.readingSince = tick;
+			try {
+				return super.read();
+			} finally {
+				connection.readingSince = 0;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			connection.readingSince = tick;
+			try {
+				return super.read(b, off, len);
+			} finally {
+				connection.readingSince = 0;
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			connection.readingSince = tick;
+			try {
+				return super.skip(n);
+			} finally {
+				connection.readingSince = 0;
+			}
+		}
+	}
+
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final long origin = System.nanoTime();
+	protected volatile long tick = 1;
+	protected final TimerWheel<Connection> wheel = new TimerWheel<Connection>(tick);
+
+	/**
+	 * The least recently active idle connection (head) to the most recent (tail).
+	 */
+	protected final Connection idle = new Connection(null);
+
+	protected int openConnections = 0;
+	protected int idleConnections = 0;
+
+	protected volatile int maxConnections = 0;
+	protected volatile int maxRequests = 0;
+	protected volatile int headerTimeout = SERVER_TIMEOUT;
+	protected volatile int bodyTimeout = SERVER_TIMEOUT;
+	protected volatile int idleTimeout = SERVER_TIMEOUT;
+	protected volatile int serverTimeout = NanoHTTPD.SOCKET_READ_TIMEOUT;
+
+	protected final LongAdder opened = new LongAdder();
+	protected final LongAdder rejected = new LongAdder();
+	protected final LongAdder evicted = new LongAdder();
+	protected final LongAdder headerTimeouts = new LongAdder();
+	protected final LongAdder bodyTimeouts = new LongAdder();
+	protected final LongAdder idleTimeouts = new LongAdder();
+
+	protected Thread reaper;
+	protected volatile boolean running;
+
+	public ConnectionManager() {
+		idle.prevIdle = idle;
+		idle.nextIdle = idle;
+	}
+
+	/**
+	 * Starts the reaper thread.
+	 *
+	 * @param timeout The timeout the server was started with.
+	 * @param daemon If the reaper should be a daemon thread.
+	 */
+	public synchronized void start(int timeout, boolean daemon) {
+		this.serverTimeout = timeout;
+		if (reaper != null) return;
+
+		running = true;
+		reaper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try {
+						Thread.sleep(TICK);
+					} catch (InterruptedException e) {
+						break;
+					}
+					reap();
+				}
+			}
+		});
+		reaper.setDaemon(daemon);
+		reaper.setName("NanoHttpd Connection Reaper");
+		reaper.start();
+	}
+
+	/**
+	 * Stops the reaper thread (the connections are closed by the server).
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (reaper != null) {
+			reaper.interrupt();
+			try {
+				reaper.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			reaper = null;
+		}
+	}
+
+	/**
+	 * Registers a newly accepted connection. Approaching the limit of open
+	 * connections the least recently active idle connection is closed.
+	 *
+	 * @param clientHandler The connection.
+	 * @return False if the limit was reached (the connection should be rejected).
+	 */
+	public boolean open(ClientHandler clientHandler) {
+		Connection evict = null;
+		boolean accepted;
+		lock.lock();
+		try {
+			int max = maxConnections;
+			if (max > 0 && openConnections >= max - max / 8 && idle.nextIdle != idle) {
+				evict = idle.nextIdle;
+				close(evict);
+				evicted.increment();
+			}
+			accepted = max <= 0 || openConnections < max;
+			if (accepted) {
+				clientHandler.connection = new Connection(clientHandler);
+				openConnections++;
+				opened.increment();
+			} else {
+				rejected.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (evict != null) evict.clientHandler.expire();
+		return accepted;
+	}
+
+	/**
+	 * Wraps the input stream of a connection so the reads blocked for
+	 * longer than the body timeout, while handling a request, are timed out.
+	 * Connections whose reads are timed out otherwise (e.g. by a selector)
+	 * don't need it.
+	 */
+	public InputStream track(ClientHandler clientHandler, InputStream in) {
+		Connection connection = clientHandler.connection;
+		if (connection == null) return in;
+		connection.tracked = true;
+		return new TrackedInputStream(in, connection);
+	}
+
+	/**
+	 * A new connection started or an idle one started receiving a request
+	 * header.
+	 */
+	public void header(ClientHandler clientHandler) {
+		Connection connection = clientHandler.connection;
+		if (connection == null) return;
+		lock.lock();
+		try {
+			if (connection.phase == Phase.NEW || connection.phase == Phase.IDLE) {
+				unlinkIdle(connection);
+				connection.phase = Phase.HEADER;
+				schedule(connection, getHeaderTimeout());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The connection received a complete request header.
+	 */
+	public void busy(ClientHandler clientHandler) {
+		Connection connection = clientHandler.connection;
+		if (connection == null) return;
+		lock.lock();
+		try {
+			if (connection.phase != Phase.BUSY && connection.phase != Phase.CLOSED) {
+				unlinkIdle(connection);
+				connection.phase = Phase.BUSY;
+				schedule(connection, connection.tracked ? getBodyTimeout() : 0);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The connection answered a request and waits for the next one.
+	 */
+	public void idle(ClientHandler clientHandler) {
+		Connection connection = clientHandler.connection;
+		if (connection == null) return;
+		lock.lock();
+		try {
+			if (connection.phase != Phase.CLOSED) {
+				unlinkIdle(connection);
+				connection.phase = Phase.IDLE;
+				connection.prevIdle = idle.prevIdle;
+				connection.nextIdle = idle;
+				idle.prevIdle.nextIdle = connection;
+				idle.prevIdle = connection;
+				idleConnections++;
+				schedule(connection, getIdleTimeout());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The connection was closed (can be called more than once).
+	 */
+	public void closed(ClientHandler clientHandler) {
+		Connection connection = clientHandler.connection;
+		if (connection == null) return;
+		lock.lock();
+		try {
+			close(connection);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes all the idle connections (e.g. while draining the server).
+	 *
+	 * @return The number of connections closed.
+	 */
+	public int closeIdle() {
+		List<Connection> closing = new ArrayList<Connection>();
+		lock.lock();
+		try {
+			while (idle.nextIdle != idle) {
+				Connection connection = idle.nextIdle;
+				close(connection);
+				closing.add(connection);
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Connection connection : closing) {
+			connection.clientHandler.expire();
+		}
+		return closing.size();
+	}
+
+	/**
+	 * Returns if the connection can be kept alive after the current request.
+	 */
+	public boolean allowKeepAlive(ClientHandler clientHandler) {
+		int max = maxRequests;
+		return max <= 0 || clientHandler.getRequestCount() + 1 < max;
+	}
+
+	/**
+	 * Expires the connections whose deadline passed.
+	 */
+	protected void reap() {
+		final long now = (System.nanoTime() - origin) / TimeUnit.MILLISECONDS.toNanos(TICK) + 1;
+		tick = now;
+		final List<Connection> expired = new ArrayList<Connection>();
+		lock.lock();
+		try {
+			wheel.advance(now, connection -> {
+				switch (connection.phase) {
+				case HEADER:
+					headerTimeouts.increment();
+					break;
+				case IDLE:
+					idleTimeouts.increment();
+					break;
+				case BUSY:
+					// only blocked reads time out
+					long since = connection.readingSince;
+					long ticks = ticks(getBodyTimeout());
+					if (ticks > 0 && (since == 0 || now - since < ticks)) {
+						wheel.schedule(connection, (since == 0 ? now : since) + ticks);
+						return;
+					}
+					bodyTimeouts.increment();
+					break;
+				default:
+					return;
+				}
+				close(connection);
+				expired.add(connection);
+			});
+		} finally {
+			lock.unlock();
+		}
+		for (Connection connection : expired) {
+			connection.clientHandler.expire();
+		}
+	}
+
+	protected void close(Connection connection) {
+		if (connection.phase == Phase.CLOSED) return;
+		unlinkIdle(connection);
+		wheel.deschedule(connection);
+		connection.phase = Phase.CLOSED;
+		openConnections--;
+	}
+
+	protected void schedule(Connection connection, int timeout) {
+		long ticks = ticks(timeout);
+		if (ticks > 0) {
+			wheel.schedule(connection, tick + ticks);
+		} else {
+			wheel.deschedule(connection);
+		}
+	}
+
+	protected void unlinkIdle(Connection connection) {
+		if (connection.phase == Phase.IDLE && connection.nextIdle != null) {
+			connection.prevIdle.nextIdle = connection.nextIdle;
+			connection.nextIdle.prevIdle = connection.prevIdle;
+			connection.prevIdle = null;
+			connection.nextIdle = null;
+			idleConnections--;
+		}
+	}
+
+	protected static long ticks(int timeout) {
+		return timeout > 0 ? (timeout + TICK - 1) / TICK : 0;
+	}
+
+	protected int resolve(int timeout) {
+		return timeout == SERVER_TIMEOUT ? serverTimeout : timeout;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * The maximum number of open connections (0, the default, for no limit).
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxRequests() {
+		return maxRequests;
+	}
+
+	/**
+	 * The maximum number of requests served by a connection before it's
+	 * closed (0, the default, for no limit).
+	 */
+	public void setMaxRequests(int maxRequests) {
+		this.maxRequests = maxRequests;
+	}
+
+	public int getHeaderTimeout() {
+		return resolve(headerTimeout);
+	}
+
+	/**
+	 * The time to receive a complete request header, from the first byte (or
+	 * from the start of a new connection).
+	 */
+	public void setHeaderTimeout(int headerTimeout) {
+		this.headerTimeout = headerTimeout;
+	}
+
+	public int getBodyTimeout() {
+		return resolve(bodyTimeout);
+	}
+
+	/**
+	 * The time a read can block while handling a request.
+	 */
+	public void setBodyTimeout(int bodyTimeout) {
+		this.bodyTimeout = bodyTimeout;
+	}
+
+	public int getIdleTimeout() {
+		return resolve(idleTimeout);
+	}
+
+	/**
+	 * The time a keep-alive connection is kept waiting for the next request.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getOpenConnections() {
+		lock.lock();
+		try {
+			return openConnections;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getIdleConnections() {
+		lock.lock();
+		try {
+			return idleConnections;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	/**
+	 * @return The number of connections rejected for reaching the limit.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return The number of idle connections closed to make room.
+	 */
+	public long getEvicted() {
+		return evicted.sum();
+	}
+
+	public long getHeaderTimeouts() {
+		return headerTimeouts.sum();
+	}
+
+	public long getBodyTimeouts() {
+		return bodyTimeouts.sum();
+	}
+
+	public long getIdleTimeouts() {
+		return idleTimeouts.sum();
+	}
+}
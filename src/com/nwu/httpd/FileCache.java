@@ -0,0 +1,483 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.nwu.util.CacheableObject;
+import com.nwu.util.SimpleCache;
+import com.nwu.util.SimpleCacheConfig;
+
+/**
+ * Cache of the static files served by FileResponse. For each requested URI it
+ * keeps the resolved file, its mime type and metadata so hot files are served
+ * without touching the filesystem:
+ * <ul>
+ *  <li>Files up to maxBufferedSize are kept in a heap (or direct) ByteBuffer.</li>
+ *  <li>Files up to maxMappedSize are memory-mapped.</li>
+ *  <li>Bigger files only have the metadata cached and are sent from a 
+ *  FileChannel.</li>
+ * </ul>
+ * Files can also have a gzip variant, compressed once instead of on every
+ * request: a ".gz" sibling on disk (at least as recent as the file) or, for
+ * compressible files kept in memory, a copy compressed when cached.
+ * <br><br>
+ * A cached file is revalidated (modification time and length) at most once
+ * every revalidateMillis instead of on every request. The length of a
+ * memory-mapped file is still checked on every request, since reading a
+ * truncated mapping crashes (SIGBUS) instead of failing.
+ * <br><br>
+ * The files are kept on a SimpleCache bounded by the total size of the
+ * buffered and mapped contents.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class FileCache {
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+	public static final int DEFAULT_MAX_BUFFERED_SIZE = 64 * 1024;
+	public static final long DEFAULT_MAX_MAPPED_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+
+	protected final SimpleCacheConfig conf;
+	protected final SimpleCache cache;
+	protected volatile int maxBufferedSize = DEFAULT_MAX_BUFFERED_SIZE;
+	protected volatile long maxMappedSize = DEFAULT_MAX_MAPPED_SIZE;
+	protected volatile long revalidateNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REVALIDATE_MILLIS);
+	protected volatile boolean direct = false;
+
+	/**
+	 * A cached file.
+	 */
+	public static class CachedFile extends CacheableObject {
+		protected final File file;
+		protected final String mimeType;
+		protected final long length;
+		protected final long lastModified;
+		protected final ByteBuffer content;
+		protected final boolean mapped;
+		protected final File gzipFile;
+		protected final long gzipLastModified;
+		protected final long gzipLength;
+		protected final ByteBuffer gzip;
+		protected final Validator validator;
+		protected final Validator gzipValidator;
+		protected volatile long checkedAt;
+
+		protected CachedFile(File file, String mimeType, long length, long lastModified, ByteBuffer content, boolean mapped, 
+				File gzipFile, long gzipLastModified, long gzipLength, ByteBuffer gzip) {
+			this.file = file;
+			this.mimeType = mimeType;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.content = content;
+			this.mapped = mapped;
+			this.gzipFile = gzipFile;
+			this.gzipLastModified = gzipLastModified;
+			this.gzipLength = gzipLength;
+			this.gzip = gzip;
+			this.validator = Validator.forFile(length, lastModified, null);
+			this.gzipValidator = (gzipFile != null || gzip != null) ? Validator.forFile(length, lastModified, "gz") : null;
+			this.checkedAt = System.nanoTime();
+		}
+
+		@Override
+		public long getWeight() {
+			return Math.max(1, ((content != null) ? content.capacity() : 0) + ((gzip != null) ? gzip.capacity() : 0));
+		}
+
+		/**
+		 * @return true if the file or its gzip sibling changed since cached.
+		 */
+		protected boolean changed() {
+			// lastModified is 0 if the file no longer exists
+			if (file.lastModified() != lastModified || file.length() != length) return true;
+			return gzipFile != null && gzipFile.lastModified() != gzipLastModified;
+		}
+
+		/**
+		 * Opens the file contents starting from a given position.
+		 *
+		 * @param from The first byte.
+		 * @return An InputStream that can be sent with transferToChannel.
+		 */
+		public InputStream newInputStream(long from) throws IOException {
+			return newInputStream(from, length - from);
+		}
+
+		/**
+		 * Opens a range of the file contents (positional reads, nothing is
+		 * skipped).
+		 *
+		 * @param from The first byte.
+		 * @param count The number of bytes.
+		 * @return An InputStream that can be sent with transferToChannel.
+		 * @throws IOException If the file was mapped and its length changed
+		 * since (it should be cached again).
+		 */
+		public InputStream newInputStream(long from, long count) throws IOException {
+			from = Math.max(0, Math.min(from, length));
+			count = Math.max(0, Math.min(count, length - from));
+			if (content != null) {
+				if (mapped && file.length() != length) throw new IOException("File changed since mapped: " + file);
+				ByteBuffer buffer = content.duplicate();
+				buffer.limit((int) (from + count));
+				buffer.position((int) from);
+				return mapped ? new MappedInputStream(buffer) : new NanoHTTPD.ByteBufferInputStream(buffer);
+			}
+			return new NanoHTTPD.FileChannelInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ), from, count);
+		}
+
+		/**
+		 * Opens the gzip variant of the file.
+		 *
+		 * @return An InputStream that can be sent with transferToChannel or
+		 * null if there's no gzip variant.
+		 */
+		public InputStream newGzipInputStream() throws IOException {
+			if (gzip != null) return new NanoHTTPD.ByteBufferInputStream(gzip.duplicate());
+			if (gzipFile != null) return new NanoHTTPD.FileChannelInputStream(FileChannel.open(gzipFile.toPath(), StandardOpenOption.READ), 0, gzipLength);
+			return null;
+		}
+
+		public boolean hasGzip() {
+			return gzip != null || gzipFile != null;
+		}
+
+		/**
+		 * @return The size of the gzip variant (-1 if none).
+		 */
+		public long getGzipLength() {
+			return hasGzip() ? gzipLength : -1;
+		}
+
+		/**
+		 * The validator (size and modification time based) of the file.
+		 */
+		public Validator getValidator() {
+			return validator;
+		}
+
+		/**
+		 * The validator of the gzip variant (null if none).
+		 */
+		public Validator getGzipValidator() {
+			return gzipValidator;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return true if the contents are kept in memory (buffered or mapped).
+		 */
+		public boolean isInMemory() {
+			return content != null;
+		}
+
+		public boolean isMapped() {
+			return mapped;
+		}
+	}
+
+	public FileCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes The maximum size of all buffered and mapped files.
+	 */
+	public FileCache(long maxBytes) {
+		conf = new SimpleCacheConfig();
+		conf.setTickMillis(1000);
+		conf.setLimitObjectInCacheAge(-1);
+		conf.setMaxWeight(maxBytes);
+		cache = new SimpleCache(conf);
+	}
+
+	/**
+	 * Reads a memory-mapped file turning the error of a file truncated
+	 * while being sent into an IOException (closing the connection).
+	 */
+	protected static class MappedInputStream extends NanoHTTPD.ByteBufferInputStream {
+		public MappedInputStream(ByteBuffer buffer) {
+			super(buffer);
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				return super.read();
+			} catch (InternalError e) {
+				throw new IOException("Mapped file truncated", e);
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return super.read(b, off, len);
+			} catch (InternalError e) {
+				throw new IOException("Mapped file truncated", e);
+			}
+		}
+
+		@Override
+		public long transferToChannel(WritableByteChannel target, long count) throws IOException {
+			try {
+				return super.transferToChannel(target, count);
+			} catch (InternalError e) {
+				throw new IOException("Mapped file truncated", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a cached file revalidating it if it wasn't checked for more
+	 * than revalidateMillis.
+	 *
+	 * @param key The key (e.g. home directory and URI).
+	 * @return The cached file or null if not cached or changed.
+	 */
+	public CachedFile get(String key) {
+		CachedFile cached = (CachedFile) cache.getCachedObject(key);
+		if (cached == null) return null;
+
+		long now = System.nanoTime();
+		if (now - cached.checkedAt >= revalidateNanos) {
+			if (cached.changed()) {
+				cache.invalidateObject(key);
+				return null;
+			}
+			cached.checkedAt = now;
+		}
+		return cached;
+	}
+
+	/**
+	 * Caches a file reading it into a buffer or mapping it, depending on its
+	 * size.
+	 *
+	 * @param key The key (e.g. home directory and URI).
+	 * @param file The resolved file.
+	 * @param mimeType The mime type to answer with.
+	 * @return The cached file or null if the file changed while being read.
+	 */
+	public CachedFile put(String key, File file, String mimeType) throws IOException {
+		return put(key, file, mimeType, false);
+	}
+
+	/**
+	 * Caches a file reading it into a buffer or mapping it, depending on its
+	 * size, together with its gzip variant (a ".gz" sibling or, if compress 
+	 * is true, a compressed copy).
+	 *
+	 * @param key The key (e.g. home directory and URI).
+	 * @param file The resolved file.
+	 * @param mimeType The mime type to answer with.
+	 * @param compress If a compressed copy should be kept when there's no 
+	 * ".gz" sibling.
+	 * @return The cached file or null if the file changed while being read.
+	 */
+	public CachedFile put(String key, File file, String mimeType, boolean compress) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		ByteBuffer content = null;
+		boolean mapped = false;
+
+		if (length <= maxBufferedSize || length <= maxMappedSize) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if (length <= maxBufferedSize) {
+					content = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+					while (content.hasRemaining() && channel.read(content) >= 0);
+					content.flip();
+					if (content.limit() != length || channel.size() != length) return null;
+				} else {
+					content = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+					mapped = true;
+				}
+			}
+			content = content.asReadOnlyBuffer();
+		}
+
+		File gzipFile = gzipSibling(file, lastModified);
+		long gzipLastModified = 0, gzipLength = -1;
+		ByteBuffer gzip = null;
+		if (gzipFile != null) {
+			gzipLastModified = gzipFile.lastModified();
+			gzipLength = gzipFile.length();
+		} else if (compress && content != null && length > 0) {
+			gzip = gzip(content.duplicate());
+			// Not worth it if it doesn't compress
+			if (gzip != null && gzip.remaining() < length - (length >> 4)) {
+				gzipLength = gzip.remaining();
+			} else {
+				gzip = null;
+			}
+		}
+
+		CachedFile cached = new CachedFile(file, mimeType, length, lastModified, content, mapped, gzipFile, gzipLastModified, gzipLength, gzip);
+		cache.addObjectToCache(key, cached);
+		return cached;
+	}
+
+	/**
+	 * Describes a file without caching it or its contents (e.g. when the
+	 * cache is disabled) so it's served the same way as a cached one.
+	 *
+	 * @param file The resolved file.
+	 * @param mimeType The mime type to answer with.
+	 * @return The (not cached) file metadata.
+	 */
+	public static CachedFile describe(File file, String mimeType) {
+		long lastModified = file.lastModified();
+		File gzipFile = gzipSibling(file, lastModified);
+		return new CachedFile(file, mimeType, file.length(), lastModified, null, false, 
+				gzipFile, (gzipFile != null) ? gzipFile.lastModified() : 0, (gzipFile != null) ? gzipFile.length() : -1, null);
+	}
+
+	/**
+	 * Returns the ".gz" sibling of a file if it exists and isn't older than
+	 * the file.
+	 *
+	 * @param file The file.
+	 * @param lastModified The file modification time.
+	 * @return The sibling or null.
+	 */
+	public static File gzipSibling(File file, long lastModified) {
+		File gzipFile = new File(file.getPath() + ".gz");
+		return (gzipFile.isFile() && gzipFile.lastModified() >= lastModified) ? gzipFile : null;
+	}
+
+	protected static ByteBuffer gzip(ByteBuffer content) {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, content.remaining() / 3));
+			GZIPOutputStream gout = new GZIPOutputStream(bout);
+			byte[] buf = new byte[8192];
+			while (content.hasRemaining()) {
+				int n = Math.min(buf.length, content.remaining());
+				content.get(buf, 0, n);
+				gout.write(buf, 0, n);
+			}
+			gout.close();
+			return ByteBuffer.wrap(bout.toByteArray()).asReadOnlyBuffer();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Removes a file from the cache.
+	 *
+	 * @param key The key.
+	 */
+	public void invalidate(String key) {
+		cache.invalidateObject(key);
+	}
+
+	/**
+	 * Removes all cached files.
+	 */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * The underlying cache (e.g. to obtain statistics).
+	 *
+	 * @return The SimpleCache.
+	 */
+	public SimpleCache getCache() {
+		return cache;
+	}
+
+	public int getMaxBufferedSize() {
+		return maxBufferedSize;
+	}
+
+	/**
+	 * Sets the maximum size of the files kept in a ByteBuffer.
+	 *
+	 * @param maxBufferedSize The size in bytes.
+	 */
+	public void setMaxBufferedSize(int maxBufferedSize) {
+		this.maxBufferedSize = maxBufferedSize;
+	}
+
+	public long getMaxMappedSize() {
+		return maxMappedSize;
+	}
+
+	/**
+	 * Sets the maximum size of the memory-mapped files (bigger files are read
+	 * from disk on each request).
+	 *
+	 * @param maxMappedSize The size in bytes.
+	 */
+	public void setMaxMappedSize(long maxMappedSize) {
+		this.maxMappedSize = maxMappedSize;
+	}
+
+	public long getRevalidateMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(revalidateNanos);
+	}
+
+	/**
+	 * Sets how often a cached file is checked for changes.
+	 *
+	 * @param revalidateMillis The interval in ms (0 to check on every request).
+	 */
+	public void setRevalidateMillis(long revalidateMillis) {
+		this.revalidateNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, revalidateMillis));
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Sets if the buffered files should be kept in direct ByteBuffers (off
+	 * heap) instead of heap ones.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+}
@@ -18,10 +18,14 @@
  */
 package com.nwu.httpd;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import com.nwu.httpd.NanoHTTPD.IHTTPSession;
 import com.nwu.httpd.NanoHTTPD.Method;
+import com.nwu.httpd.NanoHTTPD.ResponseException;
+import com.nwu.httpd.router.RouteMatch;
 import com.nwu.log.Log;
 import com.nwu.log.Log.Type;
 
@@ -34,6 +38,82 @@ import com.nwu.log.Log.Type;
  *
  */
 public class HTTPSession {
+	protected static long getContentLength(Map<String, String> headers) {
+		String length = headers.get("content-length");
+		if (length != null) {
+			try {
+				return Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Serves a NanoHTTPD session: parses the PUT/POST body (or hands it, as a
+	 * stream, to the responses of URIs with "body" = "stream") and answers
+	 * it with the registered response.
+	 * 
+	 * @throws IOException If the body couldn't be parsed.
+	 * @throws ResponseException If the body couldn't be parsed.
+	 */
+	public static com.nwu.httpd.NanoHTTPD.Response serve(IHTTPd httpd, Log log, IHTTPSession session) throws IOException, ResponseException {
+		long start = System.nanoTime();
+		String uri = session.getUri();
+		Method method = session.getMethod();
+		Map<String, String> headers = session.getHeaders();
+		String registeredUri = null;
+		ResponseFactory handler = null;
+		
+		RouteMatch<ResponseFactory> route = httpd.getURIroute(method, uri);
+		if (route != null) {
+			registeredUri = route.getPattern();
+			handler = route.getTarget();
+		} else {
+			registeredUri = httpd.getDefaultResponse();
+			if (registeredUri != null) handler = httpd.getURIhandler(registeredUri);
+		}
+		
+		// The connection reuses the same request (and maps) for all its requests
+		Request request;
+		if (session.getAttachment() instanceof Request) {
+			request = (Request) session.getAttachment();
+			request.recycle();
+			request.setUri(uri);
+			request.setOriginalURI(session.getOriginalURI());
+			request.setMethod(request.strMethod2Type(method));
+			request.setHeader(headers);
+		} else {
+			request = new Request(uri, method, headers, new HashMap<String, String>(), new HashMap<String, String>(), session.getOriginalURI());
+			session.setAttachment(request);
+		}
+		
+		boolean streaming = handler != null && handler.isStreamingBody();
+		Map<String, String> files = request.getFiles();
+		if (!streaming && (Method.PUT.equals(method) || Method.POST.equals(method))) {
+			session.parseBody(files);
+		}
+		
+		// Only the first value of each parameter
+		Map<String, String> parms = request.getParams();
+		for (Map.Entry<String, List<String>> entry : session.getParameters().entrySet()) {
+			parms.put(entry.getKey(), entry.getValue().get(0));
+		}
+		parms.put(NanoHTTPD.QUERY_STRING_PARAMETER, session.getQueryParameterString());
+		
+		com.nwu.httpd.NanoHTTPD.Response res = null;
+		if (handler != null) {
+			if (log.isLoggable(Type.DEBUG)) log.log(Type.DEBUG, 0, "Using response class '" + handler.getResponseClass().getName() + "' for URI = '" + registeredUri + "'"); 
+
+			if (route != null) request.setPathParams(route.getParams());
+			if (streaming) request.setBody(session.getBodyStream());
+			request.setTrailers(session.getTrailers());
+			// the bytes actually read (e.g. chunked or streamed bodies)
+			res = handler.getMetrics().track(handler.serve(request), start, session::getBodyBytesRead);
+		}
+		return res;
+	}
+	
 	/**
 	 * The main run method
 	 * 
@@ -41,31 +121,25 @@ public class HTTPSession {
 
 	public static com.nwu.httpd.NanoHTTPD.Response serve(IHTTPd httpd, Log log, String uri, Method method, Map<String, String> headers, Map<String, String> parms,
             Map<String, String> files, String oURI) {
-		String registeredUri = uri;
-		
-		if (uri.indexOf('/', 1) > -1) {
-			registeredUri = registeredUri.substring(0, uri.indexOf('/', 1));
-		}
+		long start = System.nanoTime();
+		String registeredUri = null;
+		ResponseFactory handler = null;
 		
-		if (!httpd.getURIresponses().containsKey(registeredUri)) {
+		RouteMatch<ResponseFactory> route = httpd.getURIroute(method, uri);
+		if (route != null) {
+			registeredUri = route.getPattern();
+			handler = route.getTarget();
+		} else {
 			registeredUri = httpd.getDefaultResponse();
+			if (registeredUri != null) handler = httpd.getURIhandler(registeredUri);
 		}
 
-		if (httpd.getURIresponses().containsKey(registeredUri)) {
-			com.nwu.httpd.responses.Response response = null;
-			
-			log.log(Type.DEBUG, 0, "Using response class '" + httpd.getURIresponses().get(registeredUri).getName() + "' for URI = '" + registeredUri + "'"); 
+		if (handler != null) {
+			if (log.isLoggable(Type.DEBUG)) log.log(Type.DEBUG, 0, "Using response class '" + handler.getResponseClass().getName() + "' for URI = '" + registeredUri + "'"); 
 
-			try {
-				Constructor<?> c = httpd.getURIresponse(registeredUri).getDeclaredConstructor(IHTTPd.class, String.class, Map.class);
-				response = (com.nwu.httpd.responses.Response) c.newInstance(httpd, registeredUri, httpd.getURIProps(registeredUri));
-				response.execute(new Request(uri, method, headers, parms, files, oURI));
-			} catch (InstantiationException | IllegalAccessException | SecurityException | NoSuchMethodException | IllegalArgumentException | InvocationTargetException e) {
-				e.printStackTrace();
-				return null;
-			}
-			
-			return response.getResponse();
+			Request request = new Request(uri, method, headers, parms, files, oURI);
+			if (route != null) request.setPathParams(route.getParams());
+			return handler.getMetrics().track(handler.serve(request), start, getContentLength(headers));
 		} else {
 			//return serveFile( uri, header, new File("."), true );
 			return null; // TODO: Need to change
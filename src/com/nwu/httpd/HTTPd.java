@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -34,6 +35,9 @@ import com.nwu.httpd.NanoHTTPD.IHTTPSession;
 import com.nwu.httpd.NanoHTTPD.Method;
 import com.nwu.httpd.NanoHTTPD.Response;
 import com.nwu.httpd.NanoHTTPD.ResponseException;
+import com.nwu.httpd.metrics.RouteMetrics;
+import com.nwu.httpd.router.RouteMatch;
+import com.nwu.httpd.router.Router;
 import com.nwu.log.Log;
 import com.nwu.log.Log.Type;
 
@@ -53,8 +57,12 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 
 	@SuppressWarnings("rawtypes")
 	protected HashMap<String, Class> URIresponses = new HashMap<String, Class>();
-	protected HashMap<String, Long> URIhits = new HashMap<String, Long>();
+	protected ConcurrentHashMap<String, RouteMetrics> URImetrics = new ConcurrentHashMap<String, RouteMetrics>();
 	protected HashMap<String, Map<String, String>> URIProps = new HashMap<String, Map<String, String>>();
+	protected HashMap<String, ResponseFactory> URIhandlers = new HashMap<String, ResponseFactory>();
+	protected Router<ResponseFactory> router = new Router<ResponseFactory>();
+	protected ResponseCache responseCache = new ResponseCache();
+	protected FileCache fileCache = new FileCache();
 	protected ArrayList<String> gzipaccept = new ArrayList<String>();
 	
 	public String getDefaultResponse() {
@@ -101,30 +109,93 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 		log.log(Type.DEBUG, "ServerSocket created for TCP hostname: " + hostname + "; port: " + myTcpPort);
 	}
 	
+	/**
+	 * Creates the thread launching the httpd server using the provided
+	 * strategy to execute the requests (e.g. a BoundedAsyncRunner).
+	 * 
+	 * @param aLog
+	 * @param hostname The hostname to bind to (null for all)
+	 * @param port
+	 * @param asyncRunner The strategy to execute the requests
+	 * @throws IOException
+	 * @see com.nwu.httpd.BoundedAsyncRunner
+	 */
+	public HTTPd(Log aLog, String hostname, int port, AsyncRunner asyncRunner) throws IOException {
+		this(aLog, hostname, port, asyncRunner, false);
+	}
+	
+	/**
+	 * Creates the thread launching the httpd server using the provided
+	 * strategy to execute the requests and, optionally, a selector to handle
+	 * the connections (so idle keep-alive connections don't hold a thread).
+	 * 
+	 * @param aLog
+	 * @param hostname The hostname to bind to (null for all)
+	 * @param port
+	 * @param asyncRunner The strategy to execute the requests (null for the default)
+	 * @param selectorEngine True to use the selector engine
+	 * @throws IOException
+	 * @see com.nwu.httpd.NanoHTTPD.SelectorServerRunnable
+	 */
+	public HTTPd(Log aLog, String hostname, int port, AsyncRunner asyncRunner, boolean selectorEngine) throws IOException {
+		this(aLog, hostname, port, asyncRunner, selectorEngine, null);
+	}
+	
+	/**
+	 * Creates the thread launching the httpd server as above also setting the
+	 * number of acceptor threads and the listening sockets options (e.g.
+	 * SO_REUSEPORT, backlog).
+	 * 
+	 * @param aLog
+	 * @param hostname The hostname to bind to (null for all)
+	 * @param port
+	 * @param asyncRunner The strategy to execute the requests (null for the default)
+	 * @param selectorEngine True to use the selector engine
+	 * @param listenerOptions The listener options (null for the default)
+	 * @throws IOException
+	 * @see com.nwu.httpd.NanoHTTPD.ListenerOptions
+	 */
+	public HTTPd(Log aLog, String hostname, int port, AsyncRunner asyncRunner, boolean selectorEngine, ListenerOptions listenerOptions) throws IOException {
+		this(aLog, hostname, port, asyncRunner, selectorEngine, listenerOptions, true);
+	}
+	
+	/**
+	 * Creates the httpd server as above but, if start is false, without
+	 * starting it. E.g. to register the URI responses before taking over the
+	 * listening sockets of a running server with handOver.
+	 * 
+	 * @param aLog
+	 * @param hostname The hostname to bind to (null for all)
+	 * @param port
+	 * @param asyncRunner The strategy to execute the requests (null for the default)
+	 * @param selectorEngine True to use the selector engine
+	 * @param listenerOptions The listener options (null for the default)
+	 * @param start False to leave the server stopped
+	 * @throws IOException
+	 * @see com.nwu.httpd.NanoHTTPD#handOver(NanoHTTPD, long)
+	 */
+	public HTTPd(Log aLog, String hostname, int port, AsyncRunner asyncRunner, boolean selectorEngine, ListenerOptions listenerOptions, boolean start) throws IOException {
+		super(hostname, port);
+		super.LOG = aLog.getLogLogger();
+		if (asyncRunner != null) super.setAsyncRunner(asyncRunner);
+		super.setSelectorEngine(selectorEngine);
+		super.setListenerOptions(listenerOptions);
+		if (start) super.start();
+		if (aLog != null) this.log = aLog;
+		this.httpd = this;
+		myTcpPort = port;
+		log.log(Type.DEBUG, "ServerSocket created for TCP hostname: " + hostname + "; port: " + myTcpPort);
+	}
+	
 	@Override
 	public Response serve(IHTTPSession session) {
-        Map<String, String> files = new HashMap<String, String>();
-        Method method = session.getMethod();
-        if (Method.PUT.equals(method) || Method.POST.equals(method)) {
-            try {
-                session.parseBody(files);
-            } catch (IOException ioe) {
-                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, new ByteArrayInputStream(("SERVER INTERNAL ERROR: IOException: " + ioe.getMessage()).getBytes(StandardCharsets.UTF_8)), -1);
-            } catch (ResponseException re) {
-                return new Response(re.getStatus(), MIME_PLAINTEXT, new ByteArrayInputStream(re.getMessage().getBytes(StandardCharsets.UTF_8)), re.getMessage().length());
-            }
-        }
-        
-        Map<String, String> parms = session.getParms();
-        parms.put(super.QUERY_STRING_PARAMETER, session.getQueryParameterString());
-        Response res = com.nwu.httpd.HTTPSession.serve(this, log, session.getUri(), method, session.getHeaders(), parms, files, session.getOriginalURI());
         try {
-        	session.getInputStream().skip(session.getInputStream().available());
-		} catch (IOException e) {
-			log.log(Type.ERROR, "Error emptying buffer: " + e.getMessage());
-		}
-        return res;
-        //return serve(session.getUri(), method, session.getHeaders(), parms, files);
+            return com.nwu.httpd.HTTPSession.serve(this, log, session);
+        } catch (IOException ioe) {
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, new ByteArrayInputStream(("SERVER INTERNAL ERROR: IOException: " + ioe.getMessage()).getBytes(StandardCharsets.UTF_8)), -1);
+        } catch (ResponseException re) {
+            return new Response(re.getStatus(), MIME_PLAINTEXT, new ByteArrayInputStream(re.getMessage().getBytes(StandardCharsets.UTF_8)), re.getMessage().length());
+        }
 	}
 	
 	/**
@@ -135,18 +206,69 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 	 * com.nwu.httpd.responses.Response class)
 	 * 
 	 * @param URI
-	 *            The URI to register.
+	 *            The URI to register (see com.nwu.httpd.router.Router for 
+	 *            the supported patterns).
 	 * @param aClass
 	 *            The response class (com.nwu.httpd.responses.Response) to
 	 *            register.
 	 */
 	public void registerURIResponse(String URI, Class<?> aClass, Map<String, String> props) {
+		registerURIResponse(null, URI, aClass, props);
+	}
+	
+	/**
+	 * Registers a response class to answer requests, of a given method, on a
+	 * given URI for this server thread.
+	 * 
+	 * @param method
+	 *            The method to answer (null for any method).
+	 * @param URI
+	 *            The URI to register (see com.nwu.httpd.router.Router for 
+	 *            the supported patterns).
+	 * @param aClass
+	 *            The response class (com.nwu.httpd.responses.Response) to
+	 *            register.
+	 */
+	public void registerURIResponse(Method method, String URI, Class<?> aClass, Map<String, String> props) {
 		if (aClass != null
 				&& aClass.asSubclass(com.nwu.httpd.responses.Response.class) != null) {
+			registerURIhandler(method, URI, aClass, props, new ResponseFactory(this, URI, aClass, props));
+		}
+	}
+	
+	/**
+	 * Registers a response instance to answer all requests on a given URI for
+	 * this server thread. The instance will be used concurrently so it should
+	 * be thread-safe (e.g. override serve(Request) instead of execute(Request)).
+	 * 
+	 * @param URI
+	 *            The URI to register.
+	 * @param response
+	 *            The response instance (com.nwu.httpd.responses.Response) to
+	 *            register.
+	 */
+	public void registerURIResponse(String URI, com.nwu.httpd.responses.Response response) {
+		if (response != null) {
+			registerURIhandler(null, URI, response.getClass(), response.getProps(), new ResponseFactory(this, URI, response));
+		}
+	}
+	
+	protected void registerURIhandler(Method method, String URI, Class<?> aClass, Map<String, String> props, ResponseFactory handler) {
+		RouteMetrics metrics = URImetrics.get(URI);
+		handler.setMetrics((metrics != null) ? metrics : new RouteMetrics());
+		try {
+			router.add(method, URI, handler);
+		} catch (IllegalArgumentException e) {
+			log.log(Type.ERROR, "Can't register URI '" + URI + "': " + e.getMessage());
+			return;
+		}
+		// the any-method handler (if any) is the one reported for the URI
+		if (method == null || !URIresponses.containsKey(URI)) {
 			URIresponses.put(URI, aClass);
 			URIProps.put(URI, props);
-			URIhits.put(URI, new Long(0));
 		}
+		if (method == null) URIhandlers.put(URI, handler);
+		URImetrics.put(URI, handler.getMetrics());
 	}
 
 	File myFileDir;
@@ -182,14 +304,47 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 	 * @return A sub-class of com.nwu.httpd.responses.Response
 	 */
 	public Class<?> getURIresponse(String URI) {
-		URI.replaceFirst("/+", "/");
+		Class<?> aClass = URIresponses.get(URI);
 		
-		if (getURIresponses().containsKey(URI)) {
-			URIhits.put(URI, URIhits.get(URI) + 1);
-			return getURIresponses().get(URI);
+		if (aClass != null) {
+			RouteMetrics metrics = URImetrics.get(URI);
+			if (metrics != null) metrics.hit();
 		}
 		
-		return null;
+		return aClass;
+	}
+	
+	/**
+	 * Finds the registered response that should answer a request
+	 * 
+	 * @param method The request method
+	 * @param uri The request URI
+	 * @return The match (with the ResponseFactory and the path parameters) or null if not found
+	 */
+	public RouteMatch<ResponseFactory> getURIroute(Method method, String uri) {
+		RouteMatch<ResponseFactory> route = router.match(method, uri);
+		
+		if (route != null) {
+			route.getTarget().getMetrics().hit();
+		}
+		
+		return route;
+	}
+	
+	/**
+	 * Returns the factory providing the response instances for a given URI
+	 * 
+	 * @param URI The URI to lookup the corresponding registered response
+	 * @return The ResponseFactory or null if not found
+	 */
+	public ResponseFactory getURIhandler(String URI) {
+		ResponseFactory handler = URIhandlers.get(URI);
+		
+		if (handler != null) {
+			handler.getMetrics().hit();
+		}
+		
+		return handler;
 	}
 	
 	/**
@@ -211,10 +366,53 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 	/**
 	 * Return the current hit counters for each URI response object
 	 * 
-	 * @return A HashMap where the key is the URI and the value the hit counter
+	 * @return A HashMap (snapshot) where the key is the URI and the value the hit counter
 	 */
 	public HashMap<String, Long> getURIhits() {
-		return URIhits;
+		HashMap<String, Long> hits = new HashMap<String, Long>();
+		for (Map.Entry<String, RouteMetrics> entry : URImetrics.entrySet()) {
+			hits.put(entry.getKey(), entry.getValue().getHits());
+		}
+		return hits;
+	}
+	
+	/**
+	 * Return the metrics (hits, latency, status codes and bytes) for each
+	 * registered URI
+	 * 
+	 * @return A map where the key is the URI and the value the RouteMetrics
+	 */
+	public Map<String, RouteMetrics> getURImetrics() {
+		return URImetrics;
+	}
+
+	/**
+	 * The cache of the responses of the URIs registered with the cache.ttl 
+	 * property.
+	 * 
+	 * @return The ResponseCache.
+	 * @see com.nwu.httpd.ResponseCache
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * The cache of the static files served by FileResponse.
+	 * 
+	 * @return The FileCache (null if disabled).
+	 * @see com.nwu.httpd.FileCache
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+	
+	public void setFileCache(FileCache fileCache) {
+		this.fileCache = fileCache;
 	}
 
 	/**
@@ -241,8 +439,13 @@ public class HTTPd extends NanoHTTPD implements IHTTPd {
 	
 	@Override
 	public boolean useGzipWhenAccepted(Response r) {
-        return r.getMimeType() != null && (r.getMimeType().toLowerCase().contains("text/") ||
-        		 (gzipaccept.contains(r.getMimeType().toLowerCase())));
-    }
+		return useGzipWhenAccepted(r.getMimeType());
+	}
+
+	@Override
+	public boolean useGzipWhenAccepted(String mimeType) {
+		return mimeType != null && (mimeType.toLowerCase().contains("text/") ||
+				(gzipaccept.contains(mimeType.toLowerCase())));
+	}
 
 }
@@ -3,12 +3,18 @@ package com.nwu.httpd;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.nwu.httpd.NanoHTTPD.ListenerOptions;
 import com.nwu.httpd.NanoHTTPD.Response;
+import com.nwu.httpd.metrics.AcceptMetrics;
+import com.nwu.httpd.metrics.RouteMetrics;
+import com.nwu.httpd.router.RouteMatch;
 import com.nwu.log.Log;
 
 public interface IHTTPd {
 	
 	public void registerURIResponse(String URI, Class<?> aClass, Map<String, String> props);
+	public void registerURIResponse(String URI, com.nwu.httpd.responses.Response response);
+	public void registerURIResponse(NanoHTTPD.Method method, String URI, Class<?> aClass, Map<String, String> props);
 	public HashMap<String, Class> getURIresponses();
 	
 	public void setDefaultResponse(String defaultResponse);
@@ -16,13 +22,23 @@ public interface IHTTPd {
 	
 	public HashMap<String, Map<String, String>> getURIproperties();
 	public Class<?> getURIresponse(String URI);
+	public ResponseFactory getURIhandler(String URI);
+	public RouteMatch<ResponseFactory> getURIroute(NanoHTTPD.Method method, String uri);
 	public Map<String, String> getURIProps(String URI);
 	public HashMap<String, Long> getURIhits();
+	public Map<String, RouteMetrics> getURImetrics();
+	public ResponseCache getResponseCache();
+	public FileCache getFileCache();
 	
 	public int getMyTcpPort();
 	public Log getLog();
 	public int getListeningPort();
+	public NanoHTTPD.AsyncRunner getAsyncRunner();
+	public ListenerOptions getListenerOptions();
+	public AcceptMetrics getAcceptMetrics();
+	public ConnectionManager getConnectionManager();
 	
 	public void addToGzipAccept(String mimetype);
 	public boolean useGzipWhenAccepted(Response r);
+	public boolean useGzipWhenAccepted(String mimeType);
 }
@@ -33,22 +33,18 @@ package com.nwu.httpd;
  */
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
@@ -57,18 +53,32 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -76,9 +86,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -95,6 +110,8 @@ import javax.net.ssl.TrustManagerFactory;
 
 import com.nwu.httpd.NanoHTTPD.Response.IStatus;
 import com.nwu.httpd.NanoHTTPD.Response.Status;
+import com.nwu.httpd.metrics.AcceptMetrics;
+import com.nwu.util.BufferPool;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -170,23 +187,124 @@ public abstract class NanoHTTPD {
 
         private final Socket acceptSocket;
 
+        /**
+         * Time (in milliseconds) since the connection is waiting for a new
+         * request or -1 while a request is being processed.
+         */
+        private volatile long idleSince;
+
+        private volatile long requestCount;
+
+        /**
+         * The state kept by the connection manager (null if not managed).
+         */
+        ConnectionManager.Connection connection;
+
         public ClientHandler(InputStream inputStream, Socket acceptSocket) {
             this.inputStream = inputStream;
             this.acceptSocket = acceptSocket;
+            this.idleSince = System.currentTimeMillis();
         }
 
         public void close() {
             safeClose(this.inputStream);
             safeClose(this.acceptSocket);
+            NanoHTTPD.this.connectionManager.closed(this);
+        }
+
+        /**
+         * Closes the connection after a timeout (or to make room for new
+         * connections), called by the connection manager.
+         */
+        protected void expire() {
+            close();
+        }
+
+        /**
+         * @return the time (in milliseconds) since the connection is waiting
+         *         for a new request or -1 if a request is being processed.
+         */
+        public long getIdleSince() {
+            return this.idleSince;
+        }
+
+        /**
+         * @return the number of requests served by this connection so far.
+         */
+        public long getRequestCount() {
+            return this.requestCount;
+        }
+
+        /**
+         * @return {@code true} if the connection already served at least one
+         *         request and is now only being kept alive waiting for the
+         *         next one.
+         */
+        public boolean isIdleKeepAlive() {
+            return this.requestCount > 0 && this.idleSince >= 0;
+        }
+
+        protected OutputStream getOutputStream() throws IOException {
+            // Channel backed sockets can send file bodies with transferTo
+            SocketChannel channel = this.acceptSocket.getChannel();
+            if (channel != null && channel.isBlocking()) {
+                return new ChannelOutputStream(channel, 0);
+            }
+            return new BufferedConnectionOutputStream(this.acceptSocket.getOutputStream());
+        }
+
+        void markBusy() {
+            this.idleSince = -1;
+            NanoHTTPD.this.connectionManager.header(this);
+        }
+
+        void markHeaderReceived() {
+            NanoHTTPD.this.connectionManager.busy(this);
+        }
+
+        void markIdle() {
+            this.requestCount++;
+            this.idleSince = System.currentTimeMillis();
+            NanoHTTPD.this.connectionManager.idle(this);
+        }
+
+        /**
+         * Answers the connection with the given status, without handling it,
+         * and closes it. Used by the async runners when overloaded.
+         * 
+         * @param status
+         *            the status to send.
+         * @param message
+         *            the plain text message to send.
+         */
+        public void reject(Response.IStatus status, String message) {
+            OutputStream outputStream = null;
+            try {
+                outputStream = getOutputStream();
+                Response response = newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message);
+                response.addHeader("Retry-After", "1");
+                response.setKeepAlive(false);
+                response.send(outputStream);
+            } catch (IOException e) {
+                if (NanoHTTPD.LOG != null) NanoHTTPD.LOG.log(Level.FINE, "Could not reject the client", e);
+            } finally {
+                safeClose(outputStream);
+                close();
+            }
         }
 
         @Override
         public void run() {
             OutputStream outputStream = null;
+            HTTPSession session = null;
             try {
-                outputStream = this.acceptSocket.getOutputStream();
+                outputStream = getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
-                HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                // reads are timed out by the connection manager
+                InputStream inputStream = NanoHTTPD.this.connectionManager.track(this, this.inputStream);
+                NanoHTTPD.this.connectionManager.header(this);
+                session = new HTTPSession(tempFileManager, inputStream, outputStream, this.acceptSocket.getInetAddress());
+                session.clientHandler = this;
                 while (!this.acceptSocket.isClosed()) {
                     session.execute();
                 }
@@ -205,6 +323,12 @@ public abstract class NanoHTTPD {
                 safeClose(outputStream);
                 safeClose(this.inputStream);
                 safeClose(this.acceptSocket);
+                if (session != null) {
+                    session.release();
+                }
+                // this thread might not serve another connection
+                BUFFER_POOL.flushThreadCache();
+                NanoHTTPD.this.connectionManager.closed(this);
                 NanoHTTPD.this.asyncRunner.closed(this);
             }
         }
@@ -258,6 +382,20 @@ public abstract class NanoHTTPD {
         private final ArrayList<Cookie> queue = new ArrayList<Cookie>();
 
         public CookieHandler(Map<String, String> httpHeaders) {
+            reset(httpHeaders);
+        }
+
+        /**
+         * Forgets the cookies (read and queued) of the previous request and
+         * reads the ones of the next, so a connection reuses the same
+         * handler for all its requests.
+         * 
+         * @param httpHeaders
+         *            The headers of the next request.
+         */
+        public void reset(Map<String, String> httpHeaders) {
+            this.cookies.clear();
+            this.queue.clear();
             String raw = httpHeaders.get("cookie");
             if (raw != null) {
                 String[] tokens = raw.split(";");
@@ -324,8 +462,8 @@ public abstract class NanoHTTPD {
          *            will be added.
          */
         public void unloadQueue(Response response) {
-            for (Cookie cookie : this.queue) {
-                response.addHeader("Set-Cookie", cookie.getHTTPHeader());
+            for (int i = 0; i < this.queue.size(); i++) {
+                response.addHeader("Set-Cookie", this.queue.get(i).getHTTPHeader());
             }
         }
     }
@@ -440,6 +578,9 @@ public abstract class NanoHTTPD {
 
         @Override
         public void clear() {
+            if (this.tempFiles.isEmpty()) {
+                return;
+            }
             for (TempFile file : this.tempFiles) {
                 try {
                     file.delete();
@@ -476,7 +617,8 @@ public abstract class NanoHTTPD {
 
         @Override
         public ServerSocket create() throws IOException {
-            return new ServerSocket();
+            // Channel backed so accepted sockets can use FileChannel.transferTo
+            return ServerSocketChannel.open().socket();
         }
 
     }
@@ -512,14 +654,6 @@ public abstract class NanoHTTPD {
 
     }
 
-    private static final String CONTENT_DISPOSITION_REGEX = "([ |\t]*Content-Disposition[ |\t]*:)(.*)";
-
-    private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile(CONTENT_DISPOSITION_REGEX, Pattern.CASE_INSENSITIVE);
-
-    private static final String CONTENT_TYPE_REGEX = "([ |\t]*content-type[ |\t]*:)(.*)";
-
-    private static final Pattern CONTENT_TYPE_PATTERN = Pattern.compile(CONTENT_TYPE_REGEX, Pattern.CASE_INSENSITIVE);
-
     private static final String CONTENT_DISPOSITION_ATTRIBUTE_REGEX = "[ |\t]*([a-zA-Z]*)[ |\t]*=[ |\t]*['|\"]([^\"^']*)['|\"]";
 
     private static final Pattern CONTENT_DISPOSITION_ATTRIBUTE_PATTERN = Pattern.compile(CONTENT_DISPOSITION_ATTRIBUTE_REGEX);
@@ -603,17 +737,32 @@ public abstract class NanoHTTPD {
 
         private static final int REQUEST_BUFFER_LEN = 512;
 
+        private static final String HTTP_1_1 = "HTTP/1.1";
+
+        private static final String HTTP_1_0 = "HTTP/1.0";
+
         private static final int MEMORY_STORE_LIMIT = 1024;
 
         public static final int BUFSIZE = 8192;
 
         public static final int MAX_HEADER_SIZE = 1024;
 
+        /**
+         * Maximum number of unread body bytes discarded, after answering, to
+         * keep the connection alive (otherwise it's closed).
+         */
+        public static final int MAX_BODY_DRAIN = 64 * 1024;
+
         private final TempFileManager tempFileManager;
 
-        private final OutputStream outputStream;
+        private final ConnectionOutputStream outputStream;
 
-        private final BufferedInputStream inputStream;
+        private final PooledBufferedInputStream inputStream;
+
+        /**
+         * The request line and headers (reused by each request).
+         */
+        private final byte[] buf = BUFFER_POOL.acquireArray(HTTPSession.BUFSIZE);
 
         private int splitbyte;
 
@@ -625,9 +774,13 @@ public abstract class NanoHTTPD {
 
         private Method method;
 
-        private Map<String, List<String>> parms;
+        /**
+         * The parameters of the current request (the same map, cleared, for
+         * each request of the connection).
+         */
+        private final Map<String, List<String>> parms = new HashMap<String, List<String>>();
 
-        private Map<String, String> headers;
+        private final HeaderMap headers = new HeaderMap();
 
         private CookieHandler cookies;
 
@@ -639,152 +792,177 @@ public abstract class NanoHTTPD {
 
         private String protocolVersion;
 
+        private ClientHandler clientHandler;
+
+        private InputStream bodyStream;
+
+        /**
+         * Reused as the bodyStream of each (not chunked) request.
+         */
+        private BoundedInputStream boundedBody;
+
+        /**
+         * The "content-length" of the request, parsed once with its header.
+         */
+        private long contentLength;
+
+        private Map<String, String> trailers;
+
+        private Object attachment;
+
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-            this.outputStream = outputStream;
+            this.inputStream = new PooledBufferedInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.outputStream = outputStream instanceof ConnectionOutputStream ? (ConnectionOutputStream) outputStream : new BufferedConnectionOutputStream(outputStream);
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-            this.outputStream = outputStream;
+            this.inputStream = new PooledBufferedInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.outputStream = outputStream instanceof ConnectionOutputStream ? (ConnectionOutputStream) outputStream : new BufferedConnectionOutputStream(outputStream);
             this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
             this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName().toString();
-            this.headers = new HashMap<String, String>();
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Decodes the sent headers, straight from the request buffer, and
+         * loads the data into Key/value pairs
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String, String> headers) throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
+        private void decodeHeader(byte[] buf, int len, Map<String, List<String>> parms, HeaderMap headers) throws ResponseException {
+            int pos = 0;
+            // tolerate empty lines before the request line
+            while (pos < len && (buf[pos] == '\r' || buf[pos] == '\n')) {
+                pos++;
+            }
+            int lineEnd = indexOf(buf, pos, len, (byte) '\n');
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
+            // Read the request line
+            int methodStart = skipSpaces(buf, pos, lineEnd);
+            int methodEnd = skipToken(buf, methodStart, lineEnd);
+            if (methodStart == methodEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+            this.method = Method.lookup(buf, methodStart, methodEnd);
+            if (this.method == null) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb "
+                        + new String(buf, methodStart, methodEnd - methodStart, StandardCharsets.ISO_8859_1) + " unhandled.");
+            }
 
-                pre.put("method", st.nextToken());
+            int uriStart = skipSpaces(buf, methodEnd, lineEnd);
+            int uriEnd = skipToken(buf, uriStart, lineEnd);
+            if (uriStart == uriEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
+            String uri = new String(buf, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8);
+            this.originalURI = uri;
+
+            // Decode parameters from the URI
+            int qmi = uri.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(uri.substring(qmi + 1), parms);
+                uri = uri.substring(0, qmi);
+            }
+            this.uri = (uri.indexOf('%') >= 0 || uri.indexOf('+') >= 0) ? decodePercent(uri) : uri;
+
+            // If there's another token, its protocol version,
+            // followed by HTTP headers.
+            // NOTE: this now forces header names lower case since they are
+            // case insensitive and vary by client.
+            int versionStart = skipSpaces(buf, uriEnd, lineEnd);
+            int versionEnd = skipToken(buf, versionStart, lineEnd);
+            if (versionStart == versionEnd) {
+                this.protocolVersion = HTTP_1_1;
+                NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
+            } else if (regionEquals(buf, versionStart, versionEnd, HTTP_1_1)) {
+                this.protocolVersion = HTTP_1_1;
+            } else if (regionEquals(buf, versionStart, versionEnd, HTTP_1_0)) {
+                this.protocolVersion = HTTP_1_0;
+            } else {
+                this.protocolVersion = new String(buf, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+            }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            pos = lineEnd + 1;
+            while (pos < len) {
+                lineEnd = indexOf(buf, pos, len, (byte) '\n');
+                int end = trimEnd(buf, pos, lineEnd);
+                if (end == skipSpaces(buf, pos, end)) {
+                    break;
                 }
+                int p = indexOf(buf, pos, end, (byte) ':');
+                if (p < end) {
+                    int nameStart = skipSpaces(buf, pos, p);
+                    headers.add(nameStart, trimEnd(buf, nameStart, p), skipSpaces(buf, p + 1, end), end);
+                }
+                pos = lineEnd + 1;
+            }
+        }
 
-                String uri = st.nextToken();
-                pre.put("originalURI", uri);
+        private int indexOf(byte[] buf, int from, int to, byte b) {
+            while (from < to && buf[from] != b) {
+                from++;
+            }
+            return from;
+        }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
+        private int skipSpaces(byte[] buf, int from, int to) {
+            while (from < to && (buf[from] == ' ' || buf[from] == '\t')) {
+                from++;
+            }
+            return from;
+        }
 
-                // If there's another token, its protocol version,
-                // followed by HTTP headers.
-                // NOTE: this now forces header names lower case since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    protocolVersion = st.nextToken();
-                } else {
-                    protocolVersion = "HTTP/1.1";
-                    NanoHTTPD.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
-                }
-                String line = in.readLine();
-                while (line != null && !line.trim().isEmpty()) {
-                    int p = line.indexOf(':');
-                    if (p >= 0) {
-                        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                    }
-                    line = in.readLine();
-                }
+        private int skipToken(byte[] buf, int from, int to) {
+            while (from < to && buf[from] != ' ' && buf[from] != '\t' && buf[from] != '\r') {
+                from++;
+            }
+            return from;
+        }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        private int trimEnd(byte[] buf, int from, int to) {
+            while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t' || buf[to - 1] == '\r')) {
+                to--;
+            }
+            return to;
+        }
+
+        private boolean regionEquals(byte[] buf, int from, int to, String ascii) {
+            if (to - from != ascii.length()) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length(); i++) {
+                if (buf[from + i] != ascii.charAt(i)) {
+                    return false;
+                }
             }
+            return true;
         }
 
         /**
-         * Decodes the Multipart Body data and put it into Key/Value pairs.
+         * Decodes the Multipart Body data, as it's read, and put it into
+         * Key/Value pairs. File parts are written straight to temporary files.
          */
-        private void decodeMultipartFormData(ContentType contentType, ByteBuffer fbuf, Map<String, List<String>> parms, Map<String, String> files) throws ResponseException {
+        private void decodeMultipartFormData(ContentType contentType, InputStream body, Map<String, List<String>> parms, Map<String, String> files) throws ResponseException {
             int pcount = 0;
+            MultipartStream multipart = null;
             try {
-                int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-                if (boundaryIdxs.length < 2) {
+                multipart = new MultipartStream(body, contentType.getBoundary(), contentType.getEncoding());
+                multipart.setMaxPartSize(getMaxMultipartPartSize());
+                multipart.setMaxTotalSize(getMaxMultipartSize());
+
+                MultipartStream.Part part = multipart.nextPart();
+                if (part == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
                 }
-
-                byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-                for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-                    fbuf.position(boundaryIdxs[boundaryIdx]);
-                    int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-                    fbuf.get(partHeaderBuff, 0, len);
-                    BufferedReader in =
-                            new BufferedReader(new InputStreamReader(new ByteArrayInputStream(partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-                    int headerLines = 0;
-                    // First line is boundary string
-                    String mpline = in.readLine();
-                    headerLines++;
-                    if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
-                    }
-
-                    String partName = null, fileName = null, partContentType = null;
-                    // Parse the reset of the header lines
-                    mpline = in.readLine();
-                    headerLines++;
-                    while (mpline != null && mpline.trim().length() > 0) {
-                        Matcher matcher = CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            String attributeString = matcher.group(2);
-                            matcher = CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-                            while (matcher.find()) {
-                                String key = matcher.group(1);
-                                if ("name".equalsIgnoreCase(key)) {
-                                    partName = matcher.group(2);
-                                } else if ("filename".equalsIgnoreCase(key)) {
-                                    fileName = matcher.group(2);
-                                    // add these two line to support multiple
-                                    // files uploaded using the same field Id
-                                    if (!fileName.isEmpty()) {
-                                        if (pcount > 0)
-                                            partName = partName + String.valueOf(pcount++);
-                                        else
-                                            pcount++;
-                                    }
-                                }
-                            }
-                        }
-                        matcher = CONTENT_TYPE_PATTERN.matcher(mpline);
-                        if (matcher.matches()) {
-                            partContentType = matcher.group(2).trim();
-                        }
-                        mpline = in.readLine();
-                        headerLines++;
+                for (; part != null; part = multipart.nextPart()) {
+                    String partName = part.getName(), fileName = part.getFileName();
+                    // add these two line to support multiple
+                    // files uploaded using the same field Id
+                    if (fileName != null && !fileName.isEmpty()) {
+                        if (pcount > 0)
+                            partName = partName + String.valueOf(pcount++);
+                        else
+                            pcount++;
                     }
-                    int partHeaderLength = 0;
-                    while (headerLines-- > 0) {
-                        partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-                    }
-                    // Read the part data
-                    if (partHeaderLength >= len - 4) {
-                        throw new ResponseException(Response.Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
-                    }
-                    int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-                    int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-                    fbuf.position(partDataStart);
 
                     List<String> values = parms.get(partName);
                     if (values == null) {
@@ -792,15 +970,12 @@ public abstract class NanoHTTPD {
                         parms.put(partName, values);
                     }
 
-                    if (partContentType == null) {
+                    if (part.getContentType() == null) {
                         // Read the part into a string
-                        byte[] data_bytes = new byte[partDataEnd - partDataStart];
-                        fbuf.get(data_bytes);
-
-                        values.add(new String(data_bytes, contentType.getEncoding()));
+                        values.add(part.getString());
                     } else {
                         // Read it into a file
-                        String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
+                        String path = saveTmpFile(part.getInputStream(), fileName);
                         if (!files.containsKey(partName)) {
                             files.put(partName, path);
                         } else {
@@ -813,20 +988,29 @@ public abstract class NanoHTTPD {
                         values.add(fileName);
                     }
                 }
+
+                // the epilogue, if any (and the trailers of a chunked body)
+                byte[] buf = BUFFER_POOL.acquireArray(REQUEST_BUFFER_LEN);
+                try {
+                    while (body.read(buf, 0, buf.length) >= 0) {
+                        // skip
+                    }
+                } finally {
+                    BUFFER_POOL.release(buf);
+                }
             } catch (ResponseException re) {
                 throw re;
+            } catch (MultipartStream.LimitExceededException le) {
+                throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: " + le.getMessage());
+            } catch (EOFException eof) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: " + eof.getMessage());
             } catch (Exception e) {
                 throw new ResponseException(Response.Status.INTERNAL_ERROR, e.toString());
+            } finally {
+                safeClose(multipart);
             }
         }
 
-        private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-            while (partHeaderBuff[index] != '\n') {
-                index++;
-            }
-            return ++index;
-        }
-
         /**
          * Decodes parameters in percent-encoded URI-format ( e.g.
          * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
@@ -873,14 +1057,15 @@ public abstract class NanoHTTPD {
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header
                 // at once!
-                byte[] buf = new byte[HTTPSession.BUFSIZE];
+                byte[] buf = this.buf;
                 this.splitbyte = 0;
                 this.rlen = 0;
 
                 int read = -1;
+                // the connection keeps the bytes of any pipelined request
                 this.inputStream.mark(HTTPSession.BUFSIZE);
                 try {
-                    read = this.inputStream.read(buf, 0, HTTPSession.BUFSIZE);
+                    read = readRequest(buf, 0, HTTPSession.BUFSIZE);
                 } catch (SSLException e) {
                     throw e;
                 } catch (IOException e) {
@@ -894,13 +1079,17 @@ public abstract class NanoHTTPD {
                     safeClose(this.outputStream);
                     throw new SocketException("NanoHttpd Shutdown");
                 }
+                if (this.clientHandler != null) {
+                    this.clientHandler.markBusy();
+                }
                 while (read > 0) {
+                    int from = Math.max(0, this.rlen - 3);
                     this.rlen += read;
-                    this.splitbyte = findHeaderEnd(buf, this.rlen);
+                    this.splitbyte = findHeaderEnd(buf, from, this.rlen);
                     if (this.splitbyte > 0) {
                         break;
                     }
-                    read = this.inputStream.read(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
+                    read = readRequest(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
                 }
 
                 if (this.splitbyte < this.rlen) {
@@ -908,37 +1097,36 @@ public abstract class NanoHTTPD {
                     this.inputStream.skip(this.splitbyte);
                 }
 
-                this.parms = new HashMap<String, List<String>>();
-                if (null == this.headers) {
-                    this.headers = new HashMap<String, String>();
-                } else {
-                    this.headers.clear();
-                }
-
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
+                this.headers.reset(buf);
 
                 // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, this.parms, this.headers);
+                decodeHeader(buf, this.splitbyte > 0 ? this.splitbyte : this.rlen, this.parms, this.headers);
 
                 if (null != this.remoteIp) {
                     this.headers.put("remote-addr", this.remoteIp);
                     this.headers.put("http-client-ip", this.remoteIp);
                 }
 
-                this.method = Method.lookup(pre.get("method"));
-                if (this.method == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
-                }
+                this.contentLength = parseContentLength(this.headers.get("content-length"));
 
-                this.uri = pre.get("uri");
-                this.originalURI = pre.get("originalURI");
+                if (this.cookies == null) {
+                    this.cookies = new CookieHandler(this.headers);
+                } else {
+                    this.cookies.reset(this.headers);
+                }
 
-                this.cookies = new CookieHandler(this.headers);
+                if (this.clientHandler != null) {
+                    this.clientHandler.markHeaderReceived();
+                }
 
                 String connection = this.headers.get("connection");
-                boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+                boolean keepAlive = HTTP_1_1.equals(protocolVersion) && (connection == null || !containsIgnoreCase(connection, "close"));
+                if (keepAlive && this.clientHandler != null) {
+                    keepAlive = NanoHTTPD.this.connectionManager.allowKeepAlive(this.clientHandler);
+                }
+                if (NanoHTTPD.this.draining) {
+                    keepAlive = false;
+                }
 
                 // Ok, now do the serve()
 
@@ -957,9 +1145,15 @@ public abstract class NanoHTTPD {
                     r.setRequestMethod(this.method);
                     r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
                     r.setKeepAlive(keepAlive);
+                    if (this.bodyStream instanceof BoundedInputStream && ((BoundedInputStream) this.bodyStream).getRemaining() > MAX_BODY_DRAIN) {
+                        // too much of the body left unread to be discarded
+                        r.closeConnection(true);
+                    }
+                    // answer pipelined requests back-to-back, flushing once
+                    this.outputStream.setFlushDeferred(keepAlive && !r.isCloseConnection() && isBodyRead() && this.inputStream.available() > 0);
                     r.send(this.outputStream);
                 }
-                if (!keepAlive || r.isCloseConnection()) {
+                if (!keepAlive || r.isCloseConnection() || !drainBody()) {
                     throw new SocketException("NanoHttpd Shutdown");
                 }
             } catch (SocketException e) {
@@ -971,29 +1165,82 @@ public abstract class NanoHTTPD {
                 // exception up the call stack.
                 throw ste;
             } catch (SSLException ssle) {
+                this.outputStream.setFlushDeferred(false);
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SSL PROTOCOL FAILURE: " + ssle.getMessage());
                 resp.send(this.outputStream);
                 safeClose(this.outputStream);
             } catch (IOException ioe) {
+                this.outputStream.setFlushDeferred(false);
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
                 resp.send(this.outputStream);
                 safeClose(this.outputStream);
             } catch (ResponseException re) {
+                this.outputStream.setFlushDeferred(false);
                 Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
                 resp.send(this.outputStream);
                 safeClose(this.outputStream);
             } finally {
                 safeClose(r);
                 this.tempFileManager.clear();
+                recycle();
+                if (this.clientHandler != null) {
+                    this.clientHandler.markIdle();
+                }
+            }
+        }
+
+        /**
+         * Clears the state of the request just answered so the session (and
+         * its maps, cookie handler and body stream) is reused by the next
+         * request of the connection.
+         */
+        protected void recycle() {
+            this.parms.clear();
+            this.queryParameterString = null;
+            this.bodyStream = null;
+            this.contentLength = 0;
+            this.trailers = null;
+        }
+
+        /**
+         * Parses the "content-length" header (0 if none).
+         * 
+         * @throws ResponseException
+         *             (400) if it isn't a non negative number.
+         */
+        private long parseContentLength(String value) throws ResponseException {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                long length = Long.parseLong(value.trim());
+                if (length >= 0) {
+                    return length;
+                }
+            } catch (NumberFormatException e) {
+                // answered below
+            }
+            throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length: " + value);
+        }
+
+        /**
+         * Reads (part of) a request, flushing any deferred responses before
+         * waiting for more bytes from the client.
+         */
+        private int readRequest(byte[] buf, int off, int len) throws IOException {
+            if (this.inputStream.available() == 0 && this.outputStream.isFlushDeferred()) {
+                this.outputStream.setFlushDeferred(false);
+                this.outputStream.flush();
             }
+            return this.inputStream.read(buf, off, len);
         }
 
         /**
          * Find byte index separating header from body. It must be the last byte
          * of the first two sequential new lines.
          */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
+        private int findHeaderEnd(final byte[] buf, int from, int rlen) {
+            int splitbyte = from;
             while (splitbyte + 1 < rlen) {
 
                 // RFC2616
@@ -1010,52 +1257,6 @@ public abstract class NanoHTTPD {
             return 0;
         }
 
-        /**
-         * Find the byte positions where multipart boundaries start. This reads
-         * a large block at a time and uses a temporary buffer to optimize
-         * (memory mapped) file access.
-         */
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int[] res = new int[0];
-            if (b.remaining() < boundary.length) {
-                return res;
-            }
-
-            int search_window_pos = 0;
-            byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-            int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-            b.get(search_window, 0, first_fill);
-            int new_bytes = first_fill - boundary.length;
-
-            do {
-                // Search the search_window
-                for (int j = 0; j < new_bytes; j++) {
-                    for (int i = 0; i < boundary.length; i++) {
-                        if (search_window[j + i] != boundary[i])
-                            break;
-                        if (i == boundary.length - 1) {
-                            // Match found, add it to results
-                            int[] new_res = new int[res.length + 1];
-                            System.arraycopy(res, 0, new_res, 0, res.length);
-                            new_res[res.length] = search_window_pos + j;
-                            res = new_res;
-                        }
-                    }
-                }
-                search_window_pos += new_bytes;
-
-                // Copy the end of the buffer to the start
-                System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
-
-                // Refill search_window
-                new_bytes = search_window.length - boundary.length;
-                new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-                b.get(search_window, boundary.length, new_bytes);
-            } while (new_bytes > 0);
-            return res;
-        }
-
         @Override
         public CookieHandler getCookies() {
             return this.cookies;
@@ -1118,30 +1319,149 @@ public abstract class NanoHTTPD {
         public final String getOriginalURI() {
             return this.originalURI;
         }
+
+        @Override
+        public Object getAttachment() {
+            return this.attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
         
         /**
-         * Deduce body length in bytes. Either from "content-length" header or
-         * read bytes.
+         * @return true if the body has "Transfer-Encoding: chunked" (which
+         *         takes precedence over any content-length).
+         */
+        public boolean isChunkedBody() {
+            String transferEncoding = this.headers.get("transfer-encoding");
+            return transferEncoding != null && transferEncoding.trim().toLowerCase(Locale.US).endsWith("chunked");
+        }
+
+        /**
+         * Deduce body length in bytes from the "content-length" header (-1 if
+         * chunked, thus unknown). Without either there's no body: anything
+         * after the header is the next, pipelined, request.
          */
         public long getBodySize() {
-            if (this.headers.containsKey("content-length")) {
-                return Long.parseLong(this.headers.get("content-length"));
-            } else if (this.splitbyte < this.rlen) {
-                return this.rlen - this.splitbyte;
+            if (isChunkedBody()) {
+                return -1;
+            }
+            return this.contentLength;
+        }
+
+        @Override
+        public InputStream getBodyStream() throws IOException {
+            if (this.bodyStream == null) {
+                // the client waits for this before sending the body
+                if (isExpectingContinue()) {
+                    this.outputStream.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    this.outputStream.setFlushDeferred(false);
+                    this.outputStream.flush();
+                }
+                this.bodyStream = newBodyStream();
+            }
+            return this.bodyStream;
+        }
+
+        @Override
+        public long getBodyBytesRead() {
+            if (this.bodyStream instanceof BoundedInputStream) {
+                return ((BoundedInputStream) this.bodyStream).getBytesRead();
+            } else if (this.bodyStream instanceof ChunkedInputStream) {
+                return ((ChunkedInputStream) this.bodyStream).getBytesRead();
             }
             return 0;
         }
 
+        private InputStream newBodyStream() {
+            if (isChunkedBody()) {
+                this.trailers = new HashMap<String, String>();
+                return new ChunkedInputStream(this.inputStream, this.trailers);
+            }
+            if (this.boundedBody == null) {
+                this.boundedBody = new BoundedInputStream(this.inputStream, getBodySize());
+            } else {
+                this.boundedBody.reset(getBodySize());
+            }
+            return this.boundedBody;
+        }
+
+        private boolean isExpectingContinue() {
+            return "100-continue".equalsIgnoreCase(this.headers.get("expect"));
+        }
+
+        private boolean hasBody() {
+            return isChunkedBody() || getBodySize() > 0;
+        }
+
+        /**
+         * @return true if the whole body (if any) was read.
+         */
+        private boolean isBodyRead() {
+            if (this.bodyStream instanceof BoundedInputStream) {
+                return ((BoundedInputStream) this.bodyStream).getRemaining() == 0;
+            } else if (this.bodyStream instanceof ChunkedInputStream) {
+                return ((ChunkedInputStream) this.bodyStream).isEof();
+            }
+            return !hasBody();
+        }
+
+        @Override
+        public Map<String, String> getTrailers() {
+            return this.trailers == null ? Collections.<String, String> emptyMap() : this.trailers;
+        }
+
+        /**
+         * Discards what the handler didn't read of the body, so the next
+         * request starts where it should.
+         * 
+         * @return false if too much was left to keep the connection.
+         */
+        private boolean drainBody() throws IOException {
+            if (this.bodyStream == null && hasBody()) {
+                if (isExpectingContinue()) {
+                    // the client might not send a body that wasn't asked for
+                    return false;
+                }
+                this.bodyStream = newBodyStream();
+            }
+            if (this.bodyStream instanceof BoundedInputStream) {
+                return ((BoundedInputStream) this.bodyStream).drain(MAX_BODY_DRAIN);
+            } else if (this.bodyStream instanceof ChunkedInputStream) {
+                return ((ChunkedInputStream) this.bodyStream).drain(MAX_BODY_DRAIN);
+            }
+            return true;
+        }
+
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
             RandomAccessFile randomAccessFile = null;
             try {
                 long size = getBodySize();
+
+                // multipart bodies are parsed as they're read
+                if (Method.POST.equals(this.method)) {
+                    ContentType contentType = new ContentType(this.headers.get("content-type"));
+                    if (contentType.isMultipart()) {
+                        if (contentType.getBoundary() == null) {
+                            throw new ResponseException(Response.Status.BAD_REQUEST,
+                                    "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+                        }
+                        if (getMaxMultipartSize() >= 0 && size > getMaxMultipartSize()) {
+                            throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "PAYLOAD TOO LARGE: Multipart body exceeds " + getMaxMultipartSize() + " bytes");
+                        }
+                        decodeMultipartFormData(contentType, getBodyStream(), this.parms, files);
+                        return;
+                    }
+                }
+
                 ByteArrayOutputStream baos = null;
                 DataOutput requestDataOutput = null;
 
                 // Store the request in memory or a file, depending on size
-                if (size < MEMORY_STORE_LIMIT) {
+                if (size >= 0 && size < MEMORY_STORE_LIMIT) {
                     baos = new ByteArrayOutputStream();
                     requestDataOutput = new DataOutputStream(baos);
                 } else {
@@ -1150,13 +1470,17 @@ public abstract class NanoHTTPD {
                 }
 
                 // Read all the body and write it to request_data_output
-                byte[] buf = new byte[REQUEST_BUFFER_LEN];
-                while (this.rlen >= 0 && size > 0) {
-                    this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-                    size -= this.rlen;
-                    if (this.rlen > 0) {
-                        requestDataOutput.write(buf, 0, this.rlen);
+                InputStream body = getBodyStream();
+                byte[] buf = BUFFER_POOL.acquireArray(REQUEST_BUFFER_LEN);
+                try {
+                    int read;
+                    while ((read = body.read(buf, 0, buf.length)) >= 0) {
+                        if (read > 0) {
+                            requestDataOutput.write(buf, 0, read);
+                        }
                     }
+                } finally {
+                    BUFFER_POOL.release(buf);
                 }
 
                 ByteBuffer fbuf = null;
@@ -1171,26 +1495,17 @@ public abstract class NanoHTTPD {
                 // in data section, too, read it:
                 if (Method.POST.equals(this.method)) {
                     ContentType contentType = new ContentType(this.headers.get("content-type"));
-                    if (contentType.isMultipart()) {
-                        String boundary = contentType.getBoundary();
-                        if (boundary == null) {
-                            throw new ResponseException(Response.Status.BAD_REQUEST,
-                                    "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-                        }
-                        decodeMultipartFormData(contentType, fbuf, this.parms, files);
-                    } else {
-                        byte[] postBytes = new byte[fbuf.remaining()];
-                        fbuf.get(postBytes);
-                        String postLine = new String(postBytes, contentType.getEncoding()).trim();
-                        // Handle application/x-www-form-urlencoded
-                        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-                            decodeParms(postLine, this.parms);
-                        } else if (postLine.length() != 0) {
-                            // Special case for raw POST data => create a
-                            // special files entry "postData" with raw content
-                            // data
-                            files.put("postData", postLine);
-                        }
+                    byte[] postBytes = new byte[fbuf.remaining()];
+                    fbuf.get(postBytes);
+                    String postLine = new String(postBytes, contentType.getEncoding()).trim();
+                    // Handle application/x-www-form-urlencoded
+                    if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
+                        decodeParms(postLine, this.parms);
+                    } else if (postLine.length() != 0) {
+                        // Special case for raw POST data => create a
+                        // special files entry "postData" with raw content
+                        // data
+                        files.put("postData", postLine);
                     }
                 } else if (Method.PUT.equals(this.method)) {
                     files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
@@ -1225,6 +1540,43 @@ public abstract class NanoHTTPD {
             return path;
         }
 
+        /**
+         * Returns the connection buffers to the pool once the connection is
+         * closed (and no longer used by any thread).
+         */
+        protected void release() {
+            BUFFER_POOL.release(this.buf);
+            this.inputStream.release();
+            this.outputStream.release();
+        }
+
+        /**
+         * Retrieves the content of a sent file part and saves it to a
+         * temporary file. The full path to the saved file is returned.
+         */
+        private String saveTmpFile(InputStream in, String filename_hint) throws IOException {
+            TempFile tempFile;
+            try {
+                tempFile = this.tempFileManager.createTempFile(filename_hint);
+            } catch (Exception e) {
+                throw new Error(e); // we won't recover, so throw an error
+            }
+            long len = 0;
+            OutputStream out = new FileOutputStream(tempFile.getName());
+            byte[] buf = BUFFER_POOL.acquireArray(MultipartStream.BUFSIZE);
+            try {
+                int read;
+                while ((read = in.read(buf, 0, buf.length)) >= 0) {
+                    out.write(buf, 0, read);
+                    len += read;
+                }
+            } finally {
+                BUFFER_POOL.release(buf);
+                safeClose(out);
+            }
+            return len > 0 ? tempFile.getName() : "";
+        }
+
         @Override
         public String getRemoteIpAddress() {
             return this.remoteIp;
@@ -1250,8 +1602,32 @@ public abstract class NanoHTTPD {
 
         InputStream getInputStream();
 
-        Method getMethod();
-
+        /**
+         * The request body, limited to its length, to be consumed
+         * incrementally (instead of using parseBody). What isn't read is
+         * discarded after the response is sent.
+         * 
+         * @return the body stream (the same on each call), decoded if
+         *         chunked.
+         */
+        InputStream getBodyStream() throws IOException;
+
+        /**
+         * @return the number of bytes of the request body read so far (by
+         *         parseBody or from the body stream), decoded if chunked.
+         */
+        long getBodyBytesRead();
+
+        /**
+         * The trailer headers (lower case names) of a chunked body. Filled
+         * once the body has been read to the end.
+         * 
+         * @return the trailers (empty if none).
+         */
+        Map<String, String> getTrailers();
+
+        Method getMethod();
+
         /**
          * This method will only return the first value for a given parameter.
          * You will want to use getParameters if you expect multiple values for
@@ -1294,6 +1670,16 @@ public abstract class NanoHTTPD {
         String getRemoteHostName();
 
 		String getOriginalURI();
+
+        /**
+         * An object kept by the session across the requests of a connection
+         * (e.g. to be recycled by the next request).
+         * 
+         * @return the attachment or null.
+         */
+        Object getAttachment();
+
+        void setAttachment(Object attachment);
     }
 
     /**
@@ -1318,6 +1704,28 @@ public abstract class NanoHTTPD {
         LOCK,
         UNLOCK;
 
+        private static final Method[] VALUES = values();
+
+        /**
+         * Looks up a method from its (ASCII) name bytes without creating a
+         * String.
+         */
+        static Method lookup(byte[] buf, int start, int end) {
+            for (Method method : VALUES) {
+                String name = method.name();
+                if (name.length() == end - start) {
+                    int i = 0;
+                    while (i < name.length() && buf[start + i] == name.charAt(i)) {
+                        i++;
+                    }
+                    if (i == name.length()) {
+                        return method;
+                    }
+                }
+            }
+            return null;
+        }
+
         static Method lookup(String method) {
             if (method == null)
                 return null;
@@ -1460,6 +1868,27 @@ public abstract class NanoHTTPD {
 
         }
 
+        private static final int HEADER_BUFFER_SIZE = 2048;
+
+        private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+        private static final class HttpDate {
+
+            final long second;
+
+            final String value;
+
+            HttpDate(long second) {
+                this.second = second;
+                this.value = HTTP_DATE_FORMAT.format(Instant.ofEpochSecond(second));
+            }
+        }
+
+        /**
+         * The Date header value, formatted at most once per second.
+         */
+        private static volatile HttpDate httpDate = new HttpDate(0);
+
         /**
          * HTTP status code after processing, e.g. "200 OK", Status.OK
          */
@@ -1571,6 +2000,13 @@ public abstract class NanoHTTPD {
             return this.lowerCaseHeader.get(name.toLowerCase());
         }
 
+        /**
+         * @return The headers added to this response (read-only).
+         */
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(this.header);
+        }
+
         public String getMimeType() {
             return this.mimeType;
         }
@@ -1595,56 +2031,71 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
+            ByteBuffer head = ByteBuffer.wrap(BUFFER_POOL.acquireArray(HEADER_BUFFER_SIZE));
             try {
                 if (this.status == null) {
                     throw new Error("sendResponse(): Status can't be null.");
                 }
-                PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(this.mimeType).getEncoding())), false);
-                pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
+                head = putAscii(head, "HTTP/1.1 ");
+                head = putAscii(head, this.status.getDescription());
+                head = putAscii(head, " \r\n");
                 if (this.mimeType != null) {
-                    printHeader(pw, "Content-Type", this.mimeType);
+                    head = putHeader(head, "Content-Type", this.mimeType);
                 }
                 if (getHeader("date") == null) {
-                    printHeader(pw, "Date", gmtFrmt.format(new Date()));
+                    head = putHeader(head, "Date", currentHttpDate());
                 }
                 for (Entry<String, String> entry : this.header.entrySet()) {
-                    printHeader(pw, entry.getKey(), entry.getValue());
+                    head = putHeader(head, entry.getKey(), entry.getValue());
                 }
                 if (getHeader("connection") == null) {
-                    printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+                    head = putHeader(head, "Connection", (this.keepAlive ? "keep-alive" : "close"));
                 }
-                if (getHeader("content-length") != null) {
+                // byte ranges refer to the unencoded body and a 304 has none
+                if (getHeader("content-length") != null || getHeader("content-encoding") != null || this.status == Status.PARTIAL_CONTENT
+                        || this.status == Status.NOT_MODIFIED) {
                     encodeAsGzip = false;
                 }
                 if (encodeAsGzip) {
-                    printHeader(pw, "Content-Encoding", "gzip");
+                    head = putHeader(head, "Content-Encoding", "gzip");
                     setChunkedTransfer(true);
                 }
                 long pending = this.data != null ? this.contentLength : 0;
-                if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                    printHeader(pw, "Transfer-Encoding", "chunked");
+                // a 304 has no content (nor the length of the unmodified one)
+                boolean noContent = this.status == Status.NOT_MODIFIED;
+                // a HEAD response has the headers of the GET one but no body
+                boolean noBody = noContent || this.requestMethod == Method.HEAD;
+                if (noContent) {
+                    pending = 0;
+                } else if (this.chunkedTransfer) {
+                    if (this.requestMethod != Method.HEAD) {
+                        head = putHeader(head, "Transfer-Encoding", "chunked");
+                    }
                 } else if (!encodeAsGzip) {
-                    pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
+                    pending = getContentLength(pending);
+                    if (getHeader("content-length") == null) {
+                        head = putHeader(head, "Content-Length", Long.toString(pending));
+                    }
+                }
+                head = putAscii(head, "\r\n");
+                // buffered by the connection: headers and a small body go out
+                // in a single write
+                outputStream.write(head.array(), head.arrayOffset(), head.position());
+                if (!noBody) {
+                    sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
                 }
-                pw.append("\r\n");
-                pw.flush();
-                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
                 outputStream.flush();
                 safeClose(this.data);
             } catch (IOException ioe) {
                 NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+                // the client can't tell where this response ends
+                closeConnection(true);
+            } finally {
+                BUFFER_POOL.release(head.array());
             }
         }
 
-        @SuppressWarnings("static-method")
-        protected void printHeader(PrintWriter pw, String key, String value) {
-            pw.append(key).append(": ").append(value).append("\r\n");
-        }
-
-        protected long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, long defaultSize) {
+        protected long getContentLength(long defaultSize) {
             String contentLengthString = getHeader("content-length");
             long size = defaultSize;
             if (contentLengthString != null) {
@@ -1654,10 +2105,63 @@ public abstract class NanoHTTPD {
                     LOG.severe("content-length was no number " + contentLengthString);
                 }
             }
-            pw.print("Content-Length: " + size + "\r\n");
             return size;
         }
 
+        /**
+         * Returns the current date formatted for the Date header.
+         */
+        public static String currentHttpDate() {
+            long second = System.currentTimeMillis() / 1000;
+            HttpDate cached = httpDate;
+            if (cached.second != second) {
+                cached = new HttpDate(second);
+                httpDate = cached;
+            }
+            return cached.value;
+        }
+
+        protected static ByteBuffer putHeader(ByteBuffer buffer, String key, String value) {
+            buffer = putAscii(buffer, key);
+            buffer = putAscii(buffer, ": ");
+            buffer = putAscii(buffer, value);
+            return putAscii(buffer, "\r\n");
+        }
+
+        /**
+         * Puts the characters (UTF-8 encoded if not ASCII) growing the buffer
+         * if needed.
+         * 
+         * @return the buffer (a new one if it grew).
+         */
+        protected static ByteBuffer putAscii(ByteBuffer buffer, String s) {
+            int len = s.length();
+            if (buffer.remaining() < len) {
+                buffer = grow(buffer, len);
+            }
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // not ASCII after all
+                    byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < rest.length) {
+                        buffer = grow(buffer, rest.length);
+                    }
+                    return buffer.put(rest);
+                }
+                buffer.put((byte) c);
+            }
+            return buffer;
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+            ByteBuffer bigger = ByteBuffer.wrap(BUFFER_POOL.acquireArray(Math.max(buffer.capacity() * 2, buffer.position() + needed)));
+            buffer.flip();
+            bigger.put(buffer);
+            BUFFER_POOL.release(buffer.array());
+            return bigger;
+        }
+
         private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
             if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
                 ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
@@ -1689,104 +2193,2228 @@ public abstract class NanoHTTPD {
          *            -1 to send everything, otherwise sets a max limit to the
          *            number of bytes sent
          * @throws IOException
-         *             if something goes wrong while sending the data.
+         *             if something goes wrong while sending the data or the
+         *             data ends before pending bytes were sent.
          */
         private void sendBody(OutputStream outputStream, long pending) throws IOException {
-            long BUFFER_SIZE = 16 * 1024;
-            byte[] buff = new byte[(int) BUFFER_SIZE];
+            if (pending > 0 && outputStream instanceof ChannelOutputStream && this.data instanceof ChannelTransferable && ((ChannelTransferable) this.data).isTransferable()) {
+                // zero-copy: straight from the file channel to the socket
+                long sent = ((ChannelOutputStream) outputStream).transferFrom((ChannelTransferable) this.data, pending);
+                if (sent < pending) {
+                    throw new IOException("Response data ended after " + sent + " of " + pending + " bytes");
+                }
+                return;
+            }
             boolean sendEverything = pending == -1;
-            while (pending > 0 || sendEverything) {
-                long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
-                int read = this.data.read(buff, 0, (int) bytesToRead);
-                if (read <= 0) {
-                    break;
+            long BUFFER_SIZE = sendEverything ? 16 * 1024 : Math.min(pending, 16 * 1024);
+            if (BUFFER_SIZE == 0) {
+                return;
+            }
+            byte[] buff = BUFFER_POOL.acquireArray((int) BUFFER_SIZE);
+            try {
+                while (pending > 0 || sendEverything) {
+                    long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
+                    int read = this.data.read(buff, 0, (int) bytesToRead);
+                    if (read <= 0) {
+                        if (!sendEverything) {
+                            throw new IOException("Response data ended with " + pending + " bytes still to send");
+                        }
+                        break;
+                    }
+                    outputStream.write(buff, 0, read);
+                    if (!sendEverything) {
+                        pending -= read;
+                    }
+                }
+            } finally {
+                BUFFER_POOL.release(buff);
+            }
+        }
+
+        public void setChunkedTransfer(boolean chunkedTransfer) {
+            this.chunkedTransfer = chunkedTransfer;
+        }
+
+        public void setData(InputStream data) {
+            this.data = data;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public void setRequestMethod(Method requestMethod) {
+            this.requestMethod = requestMethod;
+        }
+
+        public void setStatus(IStatus status) {
+            this.status = status;
+        }
+    }
+
+    public static final class ResponseException extends Exception {
+
+        private static final long serialVersionUID = 6569838532917408380L;
+
+        private final Response.Status status;
+
+        public ResponseException(Response.Status status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public ResponseException(Response.Status status, String message, Exception e) {
+            super(message, e);
+            this.status = status;
+        }
+
+        public Response.Status getStatus() {
+            return this.status;
+        }
+    }
+
+    /**
+     * Options of the listening sockets and acceptor threads (set before
+     * start()). With more than one acceptor and reusePort each acceptor has
+     * its own SO_REUSEPORT listening socket and the kernel balances the
+     * incoming connections between them; without it all the acceptors
+     * accept from the same listening socket.
+     */
+    public static class ListenerOptions {
+
+        private int acceptors = 1;
+
+        private boolean reusePort = false;
+
+        private int backlog = 0;
+
+        private boolean tcpNoDelay = false;
+
+        private int sendBufferSize = 0;
+
+        private int receiveBufferSize = 0;
+
+        public int getAcceptors() {
+            return acceptors;
+        }
+
+        /**
+         * The number of acceptor threads (default 1).
+         */
+        public ListenerOptions setAcceptors(int acceptors) {
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        public boolean isReusePort() {
+            return reusePort;
+        }
+
+        /**
+         * Use one SO_REUSEPORT listening socket per acceptor (falls back to
+         * a single listening socket if not supported).
+         */
+        public ListenerOptions setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        public int getBacklog() {
+            return backlog;
+        }
+
+        /**
+         * The accept queue length of each listening socket (0 for the
+         * default, capped by net.core.somaxconn on Linux).
+         */
+        public ListenerOptions setBacklog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        public boolean isTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        /**
+         * Set TCP_NODELAY on the accepted connections.
+         */
+        public ListenerOptions setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public int getSendBufferSize() {
+            return sendBufferSize;
+        }
+
+        /**
+         * SO_SNDBUF of the accepted connections (0 for the system default).
+         */
+        public ListenerOptions setSendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        /**
+         * SO_RCVBUF of the accepted connections, set on the listening socket
+         * (0 for the system default).
+         */
+        public ListenerOptions setReceiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public ListenerOptions copy() {
+            return new ListenerOptions().setAcceptors(acceptors).setReusePort(reusePort).setBacklog(backlog).setTcpNoDelay(tcpNoDelay).setSendBufferSize(sendBufferSize).setReceiveBufferSize(receiveBufferSize);
+        }
+
+        @Override
+        public String toString() {
+            return "acceptors=" + acceptors + ", reusePort=" + reusePort + ", backlog=" + backlog + ", tcpNoDelay=" + tcpNoDelay + ", sendBufferSize=" + sendBufferSize + ", receiveBufferSize=" + receiveBufferSize;
+        }
+    }
+
+    /**
+     * The runnable that will be used for the main listening thread.
+     */
+    public class ServerRunnable implements Runnable {
+
+        private final int timeout;
+
+        private volatile IOException bindException;
+
+        private volatile boolean hasBinded = false;
+
+        /**
+         * The listening socket (set by start()).
+         */
+        private ServerSocket serverSocket;
+
+        /**
+         * If this acceptor binds the listening socket (otherwise it's
+         * already bound by another acceptor).
+         */
+        private boolean bind = true;
+
+        /**
+         * If this acceptor blocks on accept (can't be stopped without
+         * closing the listening socket).
+         */
+        private volatile boolean blocking;
+
+        private volatile boolean stopped;
+
+        public ServerRunnable(int timeout) {
+            this.timeout = timeout;
+        }
+
+        protected boolean isStopped() {
+            return this.stopped;
+        }
+
+        protected ServerSocket getServerSocket() {
+            return this.serverSocket != null ? this.serverSocket : NanoHTTPD.this.myServerSocket;
+        }
+
+        protected boolean isBind() {
+            return this.bind;
+        }
+
+        protected void setBinded() {
+            this.hasBinded = true;
+        }
+
+        protected void setBindException(IOException bindException) {
+            this.bindException = bindException;
+        }
+
+        @Override
+        public void run() {
+            ServerSocket serverSocket = getServerSocket();
+            try {
+                if (this.bind) {
+                    serverSocket.bind(getBindAddress(), NanoHTTPD.this.listenerOptions.getBacklog());
+                }
+                setBinded();
+            } catch (IOException e) {
+                this.bindException = e;
+                return;
+            }
+            this.blocking = true;
+            do {
+                try {
+                    final Socket finalAccept = serverSocket.accept();
+                    long start = System.nanoTime();
+                    NanoHTTPD successor = getLastSuccessor();
+                    if (successor != null) {
+                        // the listening socket was handed over, this thread
+                        // was still blocked on accept
+                        successor.handleAccepted(finalAccept, start);
+                        return;
+                    }
+                    handleAccepted(finalAccept, start);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        NanoHTTPD.this.acceptMetrics.error();
+                    }
+                	if (NanoHTTPD.LOG != null)
+                		NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                }
+            } while (!serverSocket.isClosed() && !this.stopped);
+        }
+    }
+
+    /**
+     * Input stream over a non-blocking socket channel that blocks the reading
+     * thread (up to the socket timeout) until data is available. Bytes already
+     * read by the selector are returned first.
+     */
+    protected static class ChannelInputStream extends InputStream {
+
+        private final SocketChannel channel;
+
+        private final ByteBuffer pending;
+
+        private final int timeout;
+
+        public ChannelInputStream(SocketChannel channel, ByteBuffer pending, int timeout) {
+            this.channel = channel;
+            this.pending = pending;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.pending.hasRemaining()) {
+                int n = Math.min(len, this.pending.remaining());
+                this.pending.get(b, off, n);
+                return n;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            int n = this.channel.read(dst);
+            while (n == 0) {
+                awaitChannel(this.channel, SelectionKey.OP_READ, this.timeout);
+                n = this.channel.read(dst);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.pending.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * BufferedInputStream over a buffer taken from the pool.
+     */
+    protected static class PooledBufferedInputStream extends BufferedInputStream {
+
+        private byte[] pooled;
+
+        public PooledBufferedInputStream(InputStream in, int size) {
+            super(in, 1);
+            this.pooled = BUFFER_POOL.acquireArray(size);
+            this.buf = this.pooled;
+        }
+
+        /**
+         * Returns the buffer to the pool. The stream can't be read afterwards.
+         */
+        public void release() {
+            byte[] b = this.pooled;
+            if (b != null) {
+                this.pooled = null;
+                this.buf = null;
+                BUFFER_POOL.release(b);
+            }
+        }
+    }
+
+    /**
+     * Buffered output of a connection, so a response (or, with pipelined
+     * requests, several) goes out in as few writes as possible. Flushes can
+     * be deferred while more requests are already waiting to be answered.
+     */
+    protected static abstract class ConnectionOutputStream extends OutputStream {
+
+        public static final int BUFSIZE = 8192;
+
+        protected byte[] buffer = BUFFER_POOL.acquireArray(BUFSIZE);
+
+        protected int count;
+
+        private boolean flushDeferred;
+
+        /**
+         * Writes straight to the connection.
+         */
+        protected abstract void writeOut(byte[] b, int off, int len) throws IOException;
+
+        protected void flushOut() throws IOException {
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (this.count == this.buffer.length) {
+                flushBuffer();
+            }
+            this.buffer[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len >= this.buffer.length) {
+                writeThrough(b, off, len);
+                return;
+            }
+            if (len > this.buffer.length - this.count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, this.buffer, this.count, len);
+            this.count += len;
+        }
+
+        /**
+         * Writes out the buffered bytes followed by the given ones (too many to
+         * be buffered).
+         */
+        protected void writeThrough(byte[] b, int off, int len) throws IOException {
+            flushBuffer();
+            writeOut(b, off, len);
+        }
+
+        /**
+         * Writes out the buffered bytes (even if flushes are deferred).
+         */
+        protected void flushBuffer() throws IOException {
+            if (this.count > 0) {
+                int n = this.count;
+                this.count = 0;
+                writeOut(this.buffer, 0, n);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!this.flushDeferred) {
+                flushBuffer();
+                flushOut();
+            }
+        }
+
+        /**
+         * While deferred, flush() only keeps the data buffered (up to the
+         * buffer size).
+         */
+        public void setFlushDeferred(boolean flushDeferred) {
+            this.flushDeferred = flushDeferred;
+        }
+
+        public boolean isFlushDeferred() {
+            return this.flushDeferred;
+        }
+
+        protected void ensureOpen() throws IOException {
+            if (this.buffer == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        /**
+         * Returns the buffer to the pool (discarding any buffered bytes).
+         */
+        public void release() {
+            byte[] b = this.buffer;
+            if (b != null) {
+                this.buffer = null;
+                this.count = 0;
+                BUFFER_POOL.release(b);
+            }
+        }
+    }
+
+    /**
+     * ConnectionOutputStream over a plain OutputStream (e.g. of a SSL
+     * socket).
+     */
+    protected static class BufferedConnectionOutputStream extends ConnectionOutputStream {
+
+        private final OutputStream out;
+
+        public BufferedConnectionOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        protected void writeOut(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        protected void flushOut() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (this.buffer != null) {
+                    flushBuffer();
+                }
+            } finally {
+                release();
+                this.out.close();
+            }
+        }
+    }
+
+    /**
+     * Output stream over a non-blocking socket channel that blocks the
+     * writing thread (up to the socket timeout) while the channel can't
+     * accept more data.
+     */
+    protected static class ChannelOutputStream extends ConnectionOutputStream {
+
+        private final SocketChannel channel;
+
+        private final int timeout;
+
+        public ChannelOutputStream(SocketChannel channel, int timeout) {
+            this.channel = channel;
+            this.timeout = timeout;
+        }
+
+        @Override
+        protected void writeOut(byte[] b, int off, int len) throws IOException {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        }
+
+        /**
+         * Gathers the buffered bytes (e.g. the response headers) and the given
+         * ones in the same write.
+         */
+        @Override
+        protected void writeThrough(byte[] b, int off, int len) throws IOException {
+            if (this.count == 0) {
+                writeOut(b, off, len);
+                return;
+            }
+            ByteBuffer[] srcs = { ByteBuffer.wrap(this.buffer, 0, this.count), ByteBuffer.wrap(b, off, len) };
+            this.count = 0;
+            while (srcs[1].hasRemaining()) {
+                if (this.channel.write(srcs) == 0) {
+                    awaitChannel(this.channel, SelectionKey.OP_WRITE, this.timeout);
+                }
+            }
+        }
+
+        /**
+         * Writes all the remaining bytes of the buffer (after the buffered
+         * ones).
+         */
+        public void write(ByteBuffer src) throws IOException {
+            flushBuffer();
+            writeFully(src);
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (this.channel.write(src) == 0) {
+                    awaitChannel(this.channel, SelectionKey.OP_WRITE, this.timeout);
+                }
+            }
+        }
+
+        /**
+         * Transfers up to count bytes from src straight to the channel (e.g.
+         * with FileChannel.transferTo) returning the number of bytes sent.
+         */
+        public long transferFrom(ChannelTransferable src, long count) throws IOException {
+            flushBuffer();
+            long sent = 0;
+            while (sent < count) {
+                long n = src.transferToChannel(this.channel, count - sent);
+                if (n < 0) {
+                    break;
+                }
+                if (n == 0) {
+                    if (this.channel.isBlocking()) {
+                        break;
+                    }
+                    awaitChannel(this.channel, SelectionKey.OP_WRITE, this.timeout);
+                }
+                sent += n;
+            }
+            return sent;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (this.buffer != null) {
+                    flushBuffer();
+                }
+            } finally {
+                release();
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Incremental multipart/form-data parser. Reads the parts straight off a
+     * stream (e.g. the request body), finding the boundaries with a
+     * Boyer-Moore-Horspool search over a fixed buffer, so a body of any size
+     * is parsed with constant memory. Each part's data must be read (or is
+     * skipped) before moving to the next one.
+     * 
+     * <pre>
+     * MultipartStream multipart = new MultipartStream(in, boundary, "UTF-8");
+     * MultipartStream.Part part;
+     * while ((part = multipart.nextPart()) != null) {
+     *     InputStream data = part.getInputStream();
+     *     ...
+     * }
+     * </pre>
+     */
+    public static class MultipartStream implements Closeable {
+
+        public static final int BUFSIZE = 16 * 1024;
+
+        public static final int MAX_HEADER_SIZE = 8 * 1024;
+
+        /**
+         * Thrown when a part, or the whole body, exceeds its size limit.
+         */
+        public static class LimitExceededException extends IOException {
+
+            private static final long serialVersionUID = 1L;
+
+            public LimitExceededException(String message) {
+                super(message);
+            }
+        }
+
+        /**
+         * A part of the body: its headers and a stream over its data.
+         */
+        public class Part {
+
+            private final Map<String, String> headers;
+
+            private final String name;
+
+            private final String fileName;
+
+            private final PartInputStream data;
+
+            private Part(Map<String, String> headers) {
+                this.headers = headers;
+                String partName = null, partFileName = null;
+                String disposition = headers.get("content-disposition");
+                if (disposition != null) {
+                    Matcher matcher = CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(disposition);
+                    while (matcher.find()) {
+                        String key = matcher.group(1);
+                        if ("name".equalsIgnoreCase(key)) {
+                            partName = matcher.group(2);
+                        } else if ("filename".equalsIgnoreCase(key)) {
+                            partFileName = matcher.group(2);
+                        }
+                    }
+                }
+                this.name = partName;
+                this.fileName = partFileName;
+                this.data = new PartInputStream(maxPartSize);
+            }
+
+            /**
+             * @return the part headers (lower case names).
+             */
+            public Map<String, String> getHeaders() {
+                return this.headers;
+            }
+
+            public String getHeader(String name) {
+                return this.headers.get(name.toLowerCase(Locale.US));
+            }
+
+            /**
+             * @return the Content-Disposition name or null.
+             */
+            public String getName() {
+                return this.name;
+            }
+
+            /**
+             * @return the Content-Disposition filename or null.
+             */
+            public String getFileName() {
+                return this.fileName;
+            }
+
+            /**
+             * @return the part Content-Type or null (a form field).
+             */
+            public String getContentType() {
+                return this.headers.get("content-type");
+            }
+
+            /**
+             * @return the part data (valid until the next part is requested).
+             */
+            public InputStream getInputStream() {
+                return this.data;
+            }
+
+            /**
+             * Reads the (rest of the) part data as a String.
+             */
+            public String getString() throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] b = BUFFER_POOL.acquireArray(4096);
+                try {
+                    int read;
+                    while ((read = this.data.read(b, 0, b.length)) >= 0) {
+                        out.write(b, 0, read);
+                    }
+                } finally {
+                    BUFFER_POOL.release(b);
+                }
+                return new String(out.toByteArray(), encoding);
+            }
+        }
+
+        /**
+         * The data of the current part: up to the next delimiter.
+         */
+        private class PartInputStream extends InputStream {
+
+            private final long limit;
+
+            private long size;
+
+            private boolean done;
+
+            private PartInputStream(long limit) {
+                this.limit = limit;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (this.done) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                if (head >= dataEnd) {
+                    if (!atDelimiter) {
+                        scan();
+                    }
+                    if (head >= dataEnd) {
+                        this.done = true;
+                        return -1;
+                    }
+                }
+                int n = Math.min(len, dataEnd - head);
+                System.arraycopy(buf, head, b, off, n);
+                head += n;
+                this.size += n;
+                if (this.limit >= 0 && this.size > this.limit) {
+                    throw new LimitExceededException("Multipart part exceeds " + this.limit + " bytes");
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return this.done ? 0 : Math.max(0, dataEnd - head);
+            }
+
+            /**
+             * Skips the rest of the part.
+             */
+            private void drain() throws IOException {
+                while (!this.done) {
+                    if (head >= dataEnd) {
+                        if (atDelimiter) {
+                            this.done = true;
+                            break;
+                        }
+                        scan();
+                        continue;
+                    }
+                    this.size += dataEnd - head;
+                    head = dataEnd;
+                    if (this.limit >= 0 && this.size > this.limit) {
+                        throw new LimitExceededException("Multipart part exceeds " + this.limit + " bytes");
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                // the rest is skipped by nextPart()
+            }
+        }
+
+        private final InputStream in;
+
+        private final String encoding;
+
+        /**
+         * CRLF + "--" + boundary
+         */
+        private final byte[] delimiter;
+
+        /**
+         * Horspool bad character shifts.
+         */
+        private final int[] shift = new int[256];
+
+        private byte[] buf;
+
+        private int head;
+
+        private int tail;
+
+        /**
+         * End of the current part data known so far (no delimiter starts
+         * before it).
+         */
+        private int dataEnd;
+
+        private boolean atDelimiter;
+
+        private long maxPartSize = -1;
+
+        private long maxTotalSize = -1;
+
+        private long total;
+
+        private PartInputStream current;
+
+        private boolean finished;
+
+        public MultipartStream(InputStream in, String boundary, String encoding) {
+            this.in = in;
+            this.encoding = encoding;
+            byte[] b = boundary.getBytes(StandardCharsets.ISO_8859_1);
+            this.delimiter = new byte[b.length + 4];
+            this.delimiter[0] = '\r';
+            this.delimiter[1] = '\n';
+            this.delimiter[2] = '-';
+            this.delimiter[3] = '-';
+            System.arraycopy(b, 0, this.delimiter, 4, b.length);
+
+            int m = this.delimiter.length;
+            Arrays.fill(this.shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                this.shift[this.delimiter[i] & 0xff] = m - 1 - i;
+            }
+
+            this.buf = BUFFER_POOL.acquireArray(Math.max(BUFSIZE, 4 * m));
+            // the first boundary isn't preceded by a CRLF
+            this.buf[0] = '\r';
+            this.buf[1] = '\n';
+            this.tail = 2;
+        }
+
+        /**
+         * Sets the maximum size of each part's data (-1, the default, for no
+         * limit). Parts over it throw a LimitExceededException when read.
+         */
+        public void setMaxPartSize(long maxPartSize) {
+            this.maxPartSize = maxPartSize;
+        }
+
+        public long getMaxPartSize() {
+            return this.maxPartSize;
+        }
+
+        /**
+         * Sets the maximum number of bytes read from the stream (-1, the
+         * default, for no limit).
+         */
+        public void setMaxTotalSize(long maxTotalSize) {
+            this.maxTotalSize = maxTotalSize;
+        }
+
+        public long getMaxTotalSize() {
+            return this.maxTotalSize;
+        }
+
+        /**
+         * Stops parsing (nextPart() returns null) and returns the buffer to
+         * the pool. Doesn't close the underlying stream.
+         */
+        @Override
+        public void close() {
+            this.finished = true;
+            if (this.current != null) {
+                this.current.done = true;
+                this.current = null;
+            }
+            if (this.buf != null) {
+                BUFFER_POOL.release(this.buf);
+                this.buf = null;
+            }
+        }
+
+        /**
+         * Skips what's left of the current part and parses the headers of the
+         * next one.
+         * 
+         * @return the next part or null after the closing boundary.
+         */
+        public Part nextPart() throws IOException {
+            if (this.finished) {
+                return null;
+            }
+            if (this.current == null) {
+                // the preamble, if any
+                new PartInputStream(-1).drain();
+            } else {
+                this.current.drain();
+            }
+
+            this.head += this.delimiter.length;
+            int c1 = readByte(), c2 = readByte();
+            if (c1 == '-' && c2 == '-') {
+                close();
+                return null;
+            }
+            // transport padding until the CRLF
+            while (c1 != '\r' || c2 != '\n') {
+                if (c1 != ' ' && c1 != '\t') {
+                    throw new IOException("Malformed multipart boundary line");
+                }
+                c1 = c2;
+                c2 = readByte();
+            }
+
+            Map<String, String> partHeaders = readHeaders();
+            this.dataEnd = this.head;
+            this.atDelimiter = false;
+            Part part = new Part(partHeaders);
+            this.current = part.data;
+            return part;
+        }
+
+        private Map<String, String> readHeaders() throws IOException {
+            Map<String, String> partHeaders = new HashMap<String, String>();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int size = 0;
+            for (;;) {
+                int c = readByte();
+                if (++size > MAX_HEADER_SIZE) {
+                    throw new LimitExceededException("Multipart header size exceeds " + MAX_HEADER_SIZE + " bytes");
+                }
+                if (c == '\r') {
+                    continue;
+                }
+                if (c != '\n') {
+                    line.write(c);
+                    continue;
+                }
+                if (line.size() == 0) {
+                    return partHeaders;
+                }
+                String header = new String(line.toByteArray(), this.encoding);
+                int p = header.indexOf(':');
+                if (p > 0) {
+                    partHeaders.put(header.substring(0, p).trim().toLowerCase(Locale.US), header.substring(p + 1).trim());
+                }
+                line.reset();
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (this.head >= this.tail && !fill()) {
+                throw new EOFException("Multipart body ended before the closing boundary");
+            }
+            return this.buf[this.head++] & 0xff;
+        }
+
+        /**
+         * Finds where the current part data ends, reading more if needed,
+         * until there's data to return or the delimiter is reached.
+         */
+        private void scan() throws IOException {
+            int m = this.delimiter.length;
+            for (;;) {
+                int found = indexOfDelimiter(Math.max(this.dataEnd, this.head), this.tail);
+                if (found >= 0) {
+                    this.dataEnd = found;
+                    this.atDelimiter = true;
+                    return;
+                }
+                // the last bytes might be the start of a delimiter
+                this.dataEnd = Math.max(this.head, this.tail - (m - 1));
+                if (this.dataEnd > this.head) {
+                    return;
+                }
+                if (!fill()) {
+                    throw new EOFException("Multipart body ended before the closing boundary");
+                }
+            }
+        }
+
+        private int indexOfDelimiter(int from, int to) {
+            int m = this.delimiter.length;
+            int i = from;
+            while (i <= to - m) {
+                int j = m - 1;
+                while (this.buf[i + j] == this.delimiter[j]) {
+                    if (j == 0) {
+                        return i;
+                    }
+                    j--;
+                }
+                i += this.shift[this.buf[i + m - 1] & 0xff];
+            }
+            return -1;
+        }
+
+        /**
+         * Moves the unread bytes to the start of the buffer and reads more.
+         * 
+         * @return false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            if (this.head > 0) {
+                System.arraycopy(this.buf, this.head, this.buf, 0, this.tail - this.head);
+                this.tail -= this.head;
+                this.dataEnd -= this.head;
+                this.head = 0;
+            }
+            int read = this.in.read(this.buf, this.tail, this.buf.length - this.tail);
+            if (read < 0) {
+                return false;
+            }
+            this.tail += read;
+            this.total += read;
+            if (this.maxTotalSize >= 0 && this.total > this.maxTotalSize) {
+                throw new LimitExceededException("Multipart body exceeds " + this.maxTotalSize + " bytes");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An InputStream limited to a number of bytes of another one (e.g. a
+     * request body of content-length bytes). Closing it doesn't close the
+     * underlying stream.
+     */
+    public static class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private long length;
+
+        private long remaining;
+
+        public BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            reset(length);
+        }
+
+        /**
+         * Starts reading another body (e.g. of the next request) from the
+         * same stream.
+         */
+        private void reset(long length) {
+            this.length = Math.max(0, length);
+            this.remaining = this.length;
+        }
+
+        /**
+         * @return the number of bytes not yet read.
+         */
+        public long getRemaining() {
+            return this.remaining;
+        }
+
+        /**
+         * @return the number of bytes read (or skipped) so far.
+         */
+        public long getBytesRead() {
+            return this.length - this.remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of the request body (" + this.remaining + " bytes missing)");
+            }
+            this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = this.in.read(b, off, (int) Math.min(len, this.remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of the request body (" + this.remaining + " bytes missing)");
+            }
+            this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = this.in.skip(Math.min(n, this.remaining));
+            if (skipped > 0) {
+                this.remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.remaining);
+        }
+
+        /**
+         * Reads and discards the rest, if it's not more than max bytes.
+         * 
+         * @return true if nothing is left unread.
+         */
+        public boolean drain(long max) throws IOException {
+            if (this.remaining > max) {
+                return false;
+            }
+            if (this.remaining == 0) {
+                return true;
+            }
+            byte[] buf = BUFFER_POOL.acquireArray((int) Math.min(8192, this.remaining));
+            try {
+                while (this.remaining > 0) {
+                    if (read(buf, 0, buf.length) < 0) {
+                        break;
+                    }
+                }
+            } finally {
+                BUFFER_POOL.release(buf);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the underlying stream is the connection
+        }
+    }
+
+    /**
+     * Decodes a "Transfer-Encoding: chunked" body from another InputStream,
+     * up to (and including) the last chunk and its trailer headers. Closing
+     * it doesn't close the underlying stream.
+     */
+    public static class ChunkedInputStream extends InputStream {
+
+        public static final int MAX_LINE_LENGTH = 4 * 1024;
+
+        public static final int MAX_TRAILERS_SIZE = 8 * 1024;
+
+        private final InputStream in;
+
+        private final Map<String, String> trailers;
+
+        private long chunkRemaining;
+
+        private long bytesRead;
+
+        private boolean firstChunk = true;
+
+        private boolean eof;
+
+        public ChunkedInputStream(InputStream in) {
+            this(in, new HashMap<String, String>());
+        }
+
+        /**
+         * @param trailers the map to fill with the trailer headers.
+         */
+        public ChunkedInputStream(InputStream in, Map<String, String> trailers) {
+            this.in = in;
+            this.trailers = trailers;
+        }
+
+        /**
+         * @return the trailer headers (lower case names), once the end is
+         *         reached.
+         */
+        public Map<String, String> getTrailers() {
+            return this.trailers;
+        }
+
+        /**
+         * @return true once the last chunk and the trailers were read.
+         */
+        public boolean isEof() {
+            return this.eof;
+        }
+
+        /**
+         * @return the number of (decoded) bytes read so far.
+         */
+        public long getBytesRead() {
+            return this.bytesRead;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of the chunked body");
+            }
+            this.chunkRemaining--;
+            this.bytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int read = this.in.read(b, off, (int) Math.min(len, this.chunkRemaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of the chunked body");
+            }
+            this.chunkRemaining -= read;
+            this.bytesRead += read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.chunkRemaining);
+        }
+
+        /**
+         * Reads and discards the rest, if it's not more than max bytes.
+         * 
+         * @return true if the end was reached.
+         */
+        public boolean drain(long max) throws IOException {
+            if (this.eof) {
+                return true;
+            }
+            byte[] buf = BUFFER_POOL.acquireArray(8192);
+            try {
+                long left = max;
+                while (!this.eof) {
+                    int read = read(buf, 0, (int) Math.min(buf.length, left + 1));
+                    if (read < 0) {
+                        break;
+                    }
+                    left -= read;
+                    if (left < 0) {
+                        return false;
+                    }
+                }
+            } finally {
+                BUFFER_POOL.release(buf);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the underlying stream is the connection
+        }
+
+        /**
+         * Reads the next chunk size line (and the trailers after the last).
+         * 
+         * @return false at the end of the body.
+         */
+        private boolean nextChunk() throws IOException {
+            if (this.eof) {
+                return false;
+            }
+            if (!this.firstChunk && readLine(MAX_LINE_LENGTH).length() > 0) {
+                throw new IOException("Chunk data not followed by CRLF");
+            }
+            this.firstChunk = false;
+
+            String line = readLine(MAX_LINE_LENGTH);
+            int ext = line.indexOf(';');
+            if (ext >= 0) {
+                line = line.substring(0, ext);
+            }
+            long size;
+            try {
+                size = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (size < 0) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (size == 0) {
+                readTrailers();
+                this.eof = true;
+                return false;
+            }
+            this.chunkRemaining = size;
+            return true;
+        }
+
+        private void readTrailers() throws IOException {
+            int size = 0;
+            String line;
+            while ((line = readLine(MAX_TRAILERS_SIZE - size)).length() > 0) {
+                size += line.length() + 2;
+                int p = line.indexOf(':');
+                if (p > 0) {
+                    this.trailers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+                }
+            }
+        }
+
+        private String readLine(int max) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = this.in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException("Unexpected end of the chunked body");
+                }
+                if (c != '\r') {
+                    if (line.length() >= max) {
+                        throw new IOException("Chunked body line too long");
+                    }
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * The request headers, parsed straight from the connection's request
+     * buffer. The names (lower case) of the common headers are interned and
+     * the values only become Strings when accessed. The map is cleared, and
+     * the buffer reused, by the next request of the connection.
+     */
+    public static class HeaderMap extends AbstractMap<String, String> {
+
+        private static final String[] COMMON_NAMES = {
+            "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "cache-control", "connection", "content-length",
+            "content-type", "cookie", "dnt", "expect", "host", "if-match", "if-modified-since", "if-none-match", "if-range", "if-unmodified-since",
+            "keep-alive", "origin", "pragma", "range", "referer", "sec-fetch-dest", "sec-fetch-mode", "sec-fetch-site", "sec-fetch-user",
+            "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "te", "transfer-encoding", "upgrade",
+            "upgrade-insecure-requests", "user-agent", "x-forwarded-for", "x-forwarded-host", "x-forwarded-proto", "x-real-ip", "x-requested-with"
+        };
+
+        /**
+         * The common names by length.
+         */
+        private static final String[][] NAMES_BY_LENGTH;
+
+        static {
+            int max = 0;
+            for (String name : COMMON_NAMES) {
+                max = Math.max(max, name.length());
+            }
+            NAMES_BY_LENGTH = new String[max + 1][0];
+            for (String name : COMMON_NAMES) {
+                String[] names = NAMES_BY_LENGTH[name.length()];
+                names = Arrays.copyOf(names, names.length + 1);
+                names[names.length - 1] = name;
+                NAMES_BY_LENGTH[name.length()] = names;
+            }
+        }
+
+        private byte[] buf;
+
+        private String[] names = new String[16];
+
+        private String[] values = new String[16];
+
+        private int[] starts = new int[16];
+
+        private int[] ends = new int[16];
+
+        private int size;
+
+        private byte[] lowerCase = new byte[64];
+
+        /**
+         * Sets the buffer the values are read from (clearing the headers).
+         */
+        void reset(byte[] buf) {
+            clear();
+            this.buf = buf;
+        }
+
+        /**
+         * Adds a header from the buffer (replacing any with the same name).
+         */
+        void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            String name = internName(nameStart, nameEnd);
+            int i = indexOf(name);
+            if (i < 0) {
+                i = append(name);
+            }
+            this.values[i] = null;
+            this.starts[i] = valueStart;
+            this.ends[i] = valueEnd;
+        }
+
+        /**
+         * @return the lower case header name (the same instance for the
+         *         common ones).
+         */
+        private String internName(int start, int end) {
+            int len = end - start;
+            if (len < NAMES_BY_LENGTH.length) {
+                for (String name : NAMES_BY_LENGTH[len]) {
+                    int i = 0;
+                    while (i < len && toLower(this.buf[start + i]) == name.charAt(i)) {
+                        i++;
+                    }
+                    if (i == len) {
+                        return name;
+                    }
+                }
+            }
+            if (this.lowerCase.length < len) {
+                this.lowerCase = new byte[len];
+            }
+            for (int i = 0; i < len; i++) {
+                this.lowerCase[i] = (byte) toLower(this.buf[start + i]);
+            }
+            return new String(this.lowerCase, 0, len, StandardCharsets.ISO_8859_1);
+        }
+
+        private static int toLower(byte b) {
+            return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+        }
+
+        private int indexOf(Object name) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.names[i] == name) {
+                    return i;
+                }
+            }
+            for (int i = 0; i < this.size; i++) {
+                if (this.names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int append(String name) {
+            if (this.size == this.names.length) {
+                int capacity = this.size * 2;
+                this.names = Arrays.copyOf(this.names, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.ends = Arrays.copyOf(this.ends, capacity);
+            }
+            this.names[this.size] = name;
+            return this.size++;
+        }
+
+        private String valueAt(int i) {
+            if (this.values[i] == null) {
+                this.values[i] = new String(this.buf, this.starts[i], this.ends[i] - this.starts[i], StandardCharsets.UTF_8);
+            }
+            return this.values[i];
+        }
+
+        private String removeAt(int i) {
+            String old = valueAt(i);
+            int moved = this.size - i - 1;
+            System.arraycopy(this.names, i + 1, this.names, i, moved);
+            System.arraycopy(this.values, i + 1, this.values, i, moved);
+            System.arraycopy(this.starts, i + 1, this.starts, i, moved);
+            System.arraycopy(this.ends, i + 1, this.ends, i, moved);
+            this.size--;
+            this.names[this.size] = null;
+            this.values[this.size] = null;
+            return old;
+        }
+
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : valueAt(i);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            int i = indexOf(key);
+            String old = null;
+            if (i < 0) {
+                i = append(key);
+            } else {
+                old = valueAt(i);
+            }
+            this.values[i] = value;
+            return old;
+        }
+
+        @Override
+        public String remove(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : removeAt(i);
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(this.names, 0, this.size, null);
+            Arrays.fill(this.values, 0, this.size, null);
+            this.size = 0;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.next < HeaderMap.this.size;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = this.next++;
+                            return new SimpleEntry<String, String>(HeaderMap.this.names[i], valueAt(i)) {
+
+                                private static final long serialVersionUID = 1L;
+
+                                @Override
+                                public String setValue(String value) {
+                                    HeaderMap.this.put(getKey(), value);
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (this.next == 0) {
+                                throw new IllegalStateException();
+                            }
+                            removeAt(--this.next);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return HeaderMap.this.size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Response data that can be sent straight to the socket channel without
+     * being copied through the heap (e.g. with FileChannel.transferTo).
+     */
+    public interface ChannelTransferable {
+
+        /**
+         * @return true if transferToChannel can be used to send the data.
+         */
+        boolean isTransferable();
+
+        /**
+         * Transfers up to count bytes to the target channel.
+         * 
+         * @return the number of bytes transferred (0 if the target couldn't
+         *         take any) or -1 if there's no more data.
+         */
+        long transferToChannel(WritableByteChannel target, long count) throws IOException;
+    }
+
+    /**
+     * An InputStream over a region of a file channel. Read normally it behaves
+     * like a FileInputStream but, when sent to a socket channel, the region is
+     * transferred by the kernel (sendfile) instead.
+     */
+    public static class FileChannelInputStream extends InputStream implements ChannelTransferable {
+
+        private final FileChannel channel;
+
+        private final long end;
+
+        private long position;
+
+        private long mark;
+
+        public FileChannelInputStream(File file) throws IOException {
+            this(FileChannel.open(file.toPath(), StandardOpenOption.READ), 0, -1);
+        }
+
+        /**
+         * @param channel
+         *            the file channel (closed with this stream)
+         * @param position
+         *            the first byte to send
+         * @param length
+         *            the number of bytes to send or -1 for the rest of the
+         *            file
+         */
+        public FileChannelInputStream(FileChannel channel, long position, long length) throws IOException {
+            this.channel = channel;
+            this.position = position;
+            this.mark = position;
+            this.end = length < 0 ? channel.size() : position + length;
+        }
+
+        public long getPosition() {
+            return this.position;
+        }
+
+        public long getRemaining() {
+            return Math.max(0, this.end - this.position);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = getRemaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = this.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), this.position);
+            if (read > 0) {
+                this.position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, getRemaining()));
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(getRemaining(), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            this.mark = this.position;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            this.position = this.mark;
+        }
+
+        @Override
+        public boolean isTransferable() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public long transferToChannel(WritableByteChannel target, long count) throws IOException {
+            long remaining = getRemaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            long n = this.channel.transferTo(this.position, Math.min(count, remaining), target);
+            if (n == 0 && this.position >= this.channel.size()) {
+                // the file was truncated meanwhile
+                return -1;
+            }
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * The concatenation of several InputStreams (e.g. the parts of a
+     * multipart/byteranges body) that is sent with transferToChannel if all
+     * of them can be.
+     */
+    public static class ChainedInputStream extends InputStream implements ChannelTransferable {
+
+        private final List<InputStream> parts;
+
+        private int current = 0;
+
+        public ChainedInputStream(List<InputStream> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (this.current < this.parts.size()) {
+                int read = this.parts.get(this.current).read(b, off, len);
+                if (read > 0 || len == 0) {
+                    return read;
+                }
+                this.current++;
+            }
+            return -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.current < this.parts.size() ? this.parts.get(this.current).available() : 0;
+        }
+
+        @Override
+        public boolean isTransferable() {
+            for (InputStream part : this.parts) {
+                if (!(part instanceof ChannelTransferable) || !((ChannelTransferable) part).isTransferable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long transferToChannel(WritableByteChannel target, long count) throws IOException {
+            while (this.current < this.parts.size()) {
+                long n = ((ChannelTransferable) this.parts.get(this.current)).transferToChannel(target, count);
+                if (n >= 0) {
+                    return n;
+                }
+                this.current++;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (InputStream part : this.parts) {
+                safeClose(part);
+            }
+        }
+    }
+
+    /**
+     * An InputStream over a ByteBuffer (e.g. a cached or memory-mapped file)
+     * that, when sent to a socket channel, is written with no extra copy.
+     */
+    public static class ByteBufferInputStream extends InputStream implements ChannelTransferable {
+
+        private final ByteBuffer buffer;
+
+        private int mark;
+
+        /**
+         * @param buffer
+         *            the data between the buffer position and limit (the
+         *            buffer is consumed, pass a duplicate to share it)
+         */
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.mark = buffer.position();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            this.mark = this.buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            this.buffer.position(this.mark);
+        }
+
+        @Override
+        public boolean isTransferable() {
+            return true;
+        }
+
+        @Override
+        public long transferToChannel(WritableByteChannel target, long count) throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int limit = this.buffer.limit();
+            this.buffer.limit(this.buffer.position() + (int) Math.min(count, this.buffer.remaining()));
+            try {
+                return target.write(this.buffer);
+            } finally {
+                this.buffer.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Temporary selectors used to wait on a single non-blocking channel.
+     */
+    private static final Queue<Selector> AWAIT_SELECTORS = new ConcurrentLinkedQueue<Selector>();
+
+    /**
+     * Blocks the current thread until the channel is ready for the given
+     * operation.
+     * 
+     * @throws SocketTimeoutException
+     *             if the channel isn't ready after timeout milliseconds.
+     */
+    private static void awaitChannel(SocketChannel channel, int ops, int timeout) throws IOException {
+        Selector selector = AWAIT_SELECTORS.poll();
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        SelectionKey key = channel.register(selector, ops);
+        try {
+            if (selector.select(timeout > 0 ? timeout : 0) == 0 && channel.isOpen()) {
+                throw new SocketTimeoutException("Timeout waiting on the client");
+            }
+        } finally {
+            key.cancel();
+            // flush the cancelled key so the selector can be reused
+            selector.selectNow();
+            AWAIT_SELECTORS.offer(selector);
+        }
+    }
+
+    /**
+     * The client handler used by the selector engine. It's dispatched to the
+     * async runner once a full request header arrived and, after the
+     * response was sent, hands the connection back to the selector.
+     */
+    protected class SelectorClientHandler extends ClientHandler {
+
+        private final SocketChannel channel;
+
+        private final SelectorServerRunnable server;
+
+        private final ByteBuffer pending = BUFFER_POOL.acquire(HTTPSession.BUFSIZE);
+
+        private final HTTPSession session;
+
+        private SelectionKey key;
+
+        /**
+         * If the handler was handed to a worker, running or not yet (guarded by
+         * this). The worker then releases the buffers.
+         */
+        private boolean running;
+
+        private boolean released;
+
+        private int scanned;
+
+        public SelectorClientHandler(SelectorServerRunnable server, SocketChannel channel, int timeout) {
+            super(null, channel.socket());
+            this.server = server;
+            this.channel = channel;
+            this.pending.flip();
+            this.session = new HTTPSession(NanoHTTPD.this.tempFileManagerFactory.create(), new ChannelInputStream(channel, this.pending, timeout), new ChannelOutputStream(
+                    channel, timeout), channel.socket().getInetAddress());
+            this.session.clientHandler = this;
+        }
+
+        /**
+         * Reads the available bytes from the channel.
+         * 
+         * @return {@code true} if a complete request header is available.
+         */
+        boolean readAvailable() throws IOException {
+            this.pending.compact();
+            int read;
+            try {
+                read = this.channel.read(this.pending);
+            } finally {
+                this.pending.flip();
+            }
+            if (read < 0) {
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+            return headerReceived();
+        }
+
+        private boolean headerReceived() {
+            int limit = this.pending.limit();
+            if (limit == this.pending.capacity()) {
+                // Buffer full, let the session decide
+                return true;
+            }
+            for (int i = Math.max(this.pending.position(), this.scanned - 3); i + 1 < limit; i++) {
+                byte b = this.pending.get(i);
+                if (b == '\n' && (this.pending.get(i + 1) == '\n' || i + 2 < limit && this.pending.get(i + 1) == '\r' && this.pending.get(i + 2) == '\n')) {
+                    this.scanned = 0;
+                    return true;
+                }
+            }
+            this.scanned = limit;
+            return false;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            safeClose(this.channel);
+            synchronized (this) {
+                // otherwise released by the running thread, once done
+                if (this.running || this.released) {
+                    return;
+                }
+                this.released = true;
+            }
+            this.session.release();
+            BUFFER_POOL.release(this.pending);
+        }
+
+        @Override
+        protected OutputStream getOutputStream() throws IOException {
+            return this.session.outputStream;
+        }
+
+        /**
+         * Closed by the selector thread, the only one using the connection
+         * buffers while it isn't running.
+         */
+        @Override
+        protected void expire() {
+            this.server.expire(this);
+        }
+
+        /**
+         * Marks the handler as running before it's handed to the async
+         * runner so a close meanwhile leaves the buffers to the worker.
+         */
+        void dispatch() {
+            synchronized (this) {
+                this.running = true;
+            }
+            NanoHTTPD.this.asyncRunner.exec(this);
+        }
+
+        /**
+         * Called by the async runner (when overloaded) instead of running
+         * the handler, so the buffers are released here.
+         */
+        @Override
+        public void reject(Response.IStatus status, String message) {
+            synchronized (this) {
+                this.running = false;
+            }
+            super.reject(status, message);
+        }
+
+        @Override
+        public void run() {
+            boolean keepOpen = false;
+            try {
+                do {
+                    this.session.execute();
+                } while (this.channel.isOpen() && this.session.inputStream.available() > 0);
+                keepOpen = this.channel.isOpen();
+            } catch (Exception e) {
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException)) {
+                    if (NanoHTTPD.LOG != null) NanoHTTPD.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
+                }
+            } finally {
+                synchronized (this) {
+                    this.running = false;
                 }
-                outputStream.write(buff, 0, read);
-                if (!sendEverything) {
-                    pending -= read;
+                NanoHTTPD.this.asyncRunner.closed(this);
+                if (keepOpen && this.channel.isOpen()) {
+                    this.server.rearm(this);
+                } else {
+                    close();
                 }
             }
         }
+    }
 
-        public void setChunkedTransfer(boolean chunkedTransfer) {
-            this.chunkedTransfer = chunkedTransfer;
-        }
-
-        public void setData(InputStream data) {
-            this.data = data;
-        }
-
-        public void setMimeType(String mimeType) {
-            this.mimeType = mimeType;
-        }
+    /**
+     * Alternative listening runnable based on a selector. Idle (keep-alive)
+     * connections are kept on the selector without using a thread and a
+     * connection is only handed to the async runner once a complete request
+     * header is received.
+     * <p/>
+     * Requires the server socket to be created from a ServerSocketChannel
+     * (see {@link NanoHTTPD#setSelectorEngine(boolean)}); falls back to the
+     * blocking behaviour otherwise (e.g. for HTTPS).
+     */
+    public class SelectorServerRunnable extends ServerRunnable {
 
-        public void setRequestMethod(Method requestMethod) {
-            this.requestMethod = requestMethod;
-        }
+        private final Queue<SelectorClientHandler> rearms = new ConcurrentLinkedQueue<SelectorClientHandler>();
 
-        public void setStatus(IStatus status) {
-            this.status = status;
-        }
-    }
+        private final Queue<SelectorClientHandler> expired = new ConcurrentLinkedQueue<SelectorClientHandler>();
 
-    public static final class ResponseException extends Exception {
+        private volatile Selector selector;
 
-        private static final long serialVersionUID = 6569838532917408380L;
+        private SelectionKey acceptKey;
 
-        private final Response.Status status;
+        public SelectorServerRunnable(int timeout) {
+            super(timeout);
+        }
 
-        public ResponseException(Response.Status status, String message) {
-            super(message);
-            this.status = status;
+        /**
+         * Returns a connection to the selector after a request was handled.
+         */
+        void rearm(SelectorClientHandler clientHandler) {
+            this.rearms.offer(clientHandler);
+            Selector s = this.selector;
+            if (s != null) {
+                s.wakeup();
+            }
         }
 
-        public ResponseException(Response.Status status, String message, Exception e) {
-            super(message, e);
-            this.status = status;
+        /**
+         * Closes a connection on the selector thread.
+         */
+        void expire(SelectorClientHandler clientHandler) {
+            this.expired.offer(clientHandler);
+            wakeup();
         }
 
-        public Response.Status getStatus() {
-            return this.status;
+        void wakeup() {
+            Selector s = this.selector;
+            if (s != null) {
+                s.wakeup();
+            }
         }
-    }
 
-    /**
-     * The runnable that will be used for the main listening thread.
-     */
-    public class ServerRunnable implements Runnable {
+        @Override
+        public void run() {
+            ServerSocketChannel serverChannel = getServerSocket().getChannel();
+            if (serverChannel == null) {
+                super.run();
+                return;
+            }
+            try {
+                this.selector = Selector.open();
+                if (isBind()) {
+                    serverChannel.bind(getBindAddress(), NanoHTTPD.this.listenerOptions.getBacklog());
+                    serverChannel.configureBlocking(false);
+                }
+                // other acceptors without their own socket (no SO_REUSEPORT)
+                // are also woken up, only one gets the connection
+                this.acceptKey = serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+                setBinded();
+            } catch (IOException e) {
+                safeClose(this.selector);
+                setBindException(e);
+                return;
+            }
 
-        private final int timeout;
+            try {
+                // while draining the connections are still served
+                while (!isStopped() && (serverChannel.isOpen() || NanoHTTPD.this.draining)) {
+                    this.selector.select(1000);
 
-        private IOException bindException;
+                    if (NanoHTTPD.this.successor != null && this.acceptKey.isValid()) {
+                        // handed over, the successor accepts from now on
+                        this.acceptKey.cancel();
+                    }
 
-        private boolean hasBinded = false;
+                    SelectorClientHandler rearm;
+                    while ((rearm = this.rearms.poll()) != null) {
+                        if (rearm.key != null && rearm.key.isValid()) {
+                            rearm.key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                    while ((rearm = this.expired.poll()) != null) {
+                        rearm.close();
+                    }
 
-        public ServerRunnable(int timeout) {
-            this.timeout = timeout;
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen() && NanoHTTPD.LOG != null) NanoHTTPD.LOG.log(Level.SEVERE, "Selector failure", e);
+            } catch (ClosedSelectorException e) {
+                // stopping
+            } finally {
+                for (SelectionKey key : this.selector.keys()) {
+                    if (key.attachment() instanceof SelectorClientHandler) {
+                        ((SelectorClientHandler) key.attachment()).close();
+                    }
+                }
+                safeClose(this.selector);
+            }
         }
 
-        @Override
-        public void run() {
+        private void accept(ServerSocketChannel serverChannel) {
+            SocketChannel channel;
             try {
-                myServerSocket.bind(hostname != null ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
-                hasBinded = true;
+                while ((channel = serverChannel.accept()) != null) {
+                    long start = System.nanoTime();
+                    try {
+                        channel.configureBlocking(false);
+                        configureSocket(channel.socket());
+                        // reads while handling a request are timed out by
+                        // the channel streams, the rest by the connection
+                        // manager
+                        SelectorClientHandler clientHandler = new SelectorClientHandler(this, channel, NanoHTTPD.this.connectionManager.getBodyTimeout());
+                        if (!NanoHTTPD.this.connectionManager.open(clientHandler)) {
+                            clientHandler.reject(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Too many connections, try again later.");
+                            NanoHTTPD.this.acceptMetrics.accepted(start);
+                            continue;
+                        }
+                        clientHandler.key = channel.register(this.selector, SelectionKey.OP_READ, clientHandler);
+                        NanoHTTPD.this.connectionManager.header(clientHandler);
+                        NanoHTTPD.this.acceptMetrics.accepted(start);
+                    } catch (IOException e) {
+                        NanoHTTPD.this.acceptMetrics.error();
+                        safeClose(channel);
+                        if (NanoHTTPD.LOG != null) NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+                    }
+                }
             } catch (IOException e) {
-                this.bindException = e;
-                return;
+                if (serverChannel.isOpen()) {
+                    NanoHTTPD.this.acceptMetrics.error();
+                }
+                if (NanoHTTPD.LOG != null) NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
             }
-            do {
-                try {
-                    final Socket finalAccept = NanoHTTPD.this.myServerSocket.accept();
-                    if (this.timeout > 0) {
-                        finalAccept.setSoTimeout(this.timeout);
-                    }
-                    final InputStream inputStream = finalAccept.getInputStream();
-                    NanoHTTPD.this.asyncRunner.exec(createClientHandler(finalAccept, inputStream));
-                } catch (IOException e) {
-                	if (NanoHTTPD.LOG != null)
-                		NanoHTTPD.LOG.log(Level.FINE, "Communication with the client broken", e);
+        }
+
+        private void read(SelectionKey key) {
+            SelectorClientHandler clientHandler = (SelectorClientHandler) key.attachment();
+            try {
+                if (clientHandler.readAvailable()) {
+                    key.interestOps(0);
+                    NanoHTTPD.this.connectionManager.busy(clientHandler);
+                    clientHandler.dispatch();
+                } else {
+                    NanoHTTPD.this.connectionManager.header(clientHandler);
                 }
-            } while (!NanoHTTPD.this.myServerSocket.isClosed());
+            } catch (IOException e) {
+                clientHandler.close();
+            }
         }
     }
 
@@ -1840,9 +4468,11 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * Maximum time to wait on Socket.getInputStream().read() (in milliseconds)
-     * This is required as the Keep-Alive HTTP connections would otherwise block
-     * the socket reading thread forever (or as long the browser is open).
+     * Default timeout (in milliseconds) of the connections: to receive a
+     * request header, of a blocked read while handling a request and of an
+     * idle keep-alive connection (see {@link ConnectionManager}). This is
+     * required as the Keep-Alive HTTP connections would otherwise block the
+     * socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
 
@@ -1867,6 +4497,11 @@ public abstract class NanoHTTPD {
      */
     protected static Logger LOG = Logger.getLogger(NanoHTTPD.class.getName());
 
+    /**
+     * The buffers used to read requests and send responses.
+     */
+    protected static final BufferPool BUFFER_POOL = BufferPool.getDefault();
+
     /**
      * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
      */
@@ -2008,6 +4643,48 @@ public abstract class NanoHTTPD {
 
     private Thread myThread;
 
+    private ServerRunnable serverRunnable;
+
+    /**
+     * All the listening sockets (more than one with SO_REUSEPORT).
+     */
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<ServerSocket>();
+
+    /**
+     * All the acceptors (the first is serverRunnable).
+     */
+    private final List<ServerRunnable> serverRunnables = new CopyOnWriteArrayList<ServerRunnable>();
+
+    private final List<Thread> acceptorThreads = new CopyOnWriteArrayList<Thread>();
+
+    private ListenerOptions listenerOptions = new ListenerOptions();
+
+    private final AcceptMetrics acceptMetrics = new AcceptMetrics();
+
+    private ConnectionManager connectionManager = new ConnectionManager();
+
+    private volatile boolean draining = false;
+
+    /**
+     * The server the listening sockets were handed over to.
+     */
+    private volatile NanoHTTPD successor;
+
+    /**
+     * The listening sockets taken over from a predecessor (set by handOver).
+     */
+    private List<ServerSocket> inheritedSockets;
+
+    private int startTimeout = SOCKET_READ_TIMEOUT;
+
+    private boolean startDaemon = true;
+
+    private boolean selectorEngine = false;
+
+    private long maxMultipartPartSize = -1;
+
+    private long maxMultipartSize = -1;
+
     /**
      * Pluggable strategy for asynchronously executing requests.
      */
@@ -2073,6 +4750,9 @@ public abstract class NanoHTTPD {
      * @return the server runnable.
      */
     protected ServerRunnable createServerRunnable(final int timeout) {
+        if (this.selectorEngine) {
+            return new SelectorServerRunnable(timeout);
+        }
         return new ServerRunnable(timeout);
     }
 
@@ -2124,6 +4804,18 @@ public abstract class NanoHTTPD {
         return parms;
     }
 
+    /**
+     * @return true if s contains token, ignoring the (ASCII) case.
+     */
+    protected static boolean containsIgnoreCase(String s, String token) {
+        for (int i = 0; i + token.length() <= s.length(); i++) {
+            if (s.regionMatches(true, i, token, 0, token.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Decode percent encoded <code>String</code> values.
      * 
@@ -2152,12 +4844,20 @@ public abstract class NanoHTTPD {
         return r.getMimeType() != null && (r.getMimeType().toLowerCase().contains("text/") || r.getMimeType().toLowerCase().contains("/json"));
     }
 
+    /**
+     * @return the strategy currently used for asynchronously executing
+     *         requests.
+     */
+    public AsyncRunner getAsyncRunner() {
+        return this.asyncRunner;
+    }
+
     public final int getListeningPort() {
         return this.myServerSocket == null ? -1 : this.myServerSocket.getLocalPort();
     }
 
     public final boolean isAlive() {
-        return wasStarted() && !this.myServerSocket.isClosed() && this.myThread.isAlive();
+        return wasStarted() && this.successor == null && !this.myServerSocket.isClosed() && this.myThread.isAlive();
     }
 
     public ServerSocketFactory getServerSocketFactory() {
@@ -2176,6 +4876,149 @@ public abstract class NanoHTTPD {
         return tempFileManagerFactory;
     }
 
+    /**
+     * Call before start() to handle connections with a selector (see
+     * {@link SelectorServerRunnable}) instead of blocking a thread per
+     * connection. Ignored when serving over HTTPS.
+     */
+    public void setSelectorEngine(boolean selectorEngine) {
+        this.selectorEngine = selectorEngine;
+    }
+
+    public boolean isSelectorEngine() {
+        return selectorEngine;
+    }
+
+    /**
+     * Call before start() to set the number of acceptor threads, the
+     * listening sockets options and the options of the accepted
+     * connections.
+     */
+    public void setListenerOptions(ListenerOptions listenerOptions) {
+        this.listenerOptions = listenerOptions != null ? listenerOptions : new ListenerOptions();
+    }
+
+    public ListenerOptions getListenerOptions() {
+        return listenerOptions;
+    }
+
+    public AcceptMetrics getAcceptMetrics() {
+        return acceptMetrics;
+    }
+
+    /**
+     * Call before start() to replace the connection manager (the limits and
+     * timeouts of the default one can be changed at any time).
+     */
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * The address to bind to. Once a listening socket is bound, to an
+     * ephemeral port if the port is 0, the others bind to the same port.
+     */
+    protected InetSocketAddress getBindAddress() {
+        int port = this.myPort;
+        if (port == 0 && this.myServerSocket != null && this.myServerSocket.isBound()) {
+            port = this.myServerSocket.getLocalPort();
+        }
+        return hostname != null ? new InetSocketAddress(hostname, port) : new InetSocketAddress(port);
+    }
+
+    /**
+     * Applies the listener options to an accepted connection.
+     */
+    protected void configureSocket(Socket socket) throws IOException {
+        ListenerOptions options = this.listenerOptions;
+        if (options.isTcpNoDelay()) {
+            socket.setTcpNoDelay(true);
+        }
+        if (options.getSendBufferSize() > 0) {
+            socket.setSendBufferSize(options.getSendBufferSize());
+        }
+    }
+
+    /**
+     * Hands an accepted connection to the async runner (or answers it with
+     * 503 if the connection manager refuses it).
+     */
+    private void handleAccepted(Socket finalAccept, long start) throws IOException {
+        // no read timeout, the connection manager times out the connections
+        configureSocket(finalAccept);
+        final InputStream inputStream = finalAccept.getInputStream();
+        ClientHandler clientHandler = createClientHandler(finalAccept, inputStream);
+        if (this.connectionManager.open(clientHandler)) {
+            this.asyncRunner.exec(clientHandler);
+        } else {
+            clientHandler.reject(Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Too many connections, try again later.");
+        }
+        this.acceptMetrics.accepted(start);
+    }
+
+    /**
+     * The last server of the chain of servers the listening sockets were
+     * handed over to (null if not handed over).
+     */
+    private NanoHTTPD getLastSuccessor() {
+        NanoHTTPD last = this.successor;
+        while (last != null && last.successor != null) {
+            last = last.successor;
+        }
+        return last;
+    }
+
+    /**
+     * Creates a listening socket with the listener options (not bound).
+     */
+    protected ServerSocket createServerSocket(boolean selector) throws IOException {
+        ServerSocket serverSocket = selector ? ServerSocketChannel.open().socket() : this.getServerSocketFactory().create();
+        serverSocket.setReuseAddress(true);
+        if (this.listenerOptions.getReceiveBufferSize() > 0) {
+            // before bind so it applies to the accepted connections (and
+            // larger windows can be negotiated)
+            serverSocket.setReceiveBufferSize(this.listenerOptions.getReceiveBufferSize());
+        }
+        if (this.listenerOptions.isReusePort()) {
+            if (serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                safeClose(serverSocket);
+                return null;
+            }
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Sets the maximum size of each part of the multipart/form-data bodies
+     * parsed by parseBody (-1, the default, for no limit). Bigger parts are
+     * answered with 413 Payload Too Large.
+     */
+    public void setMaxMultipartPartSize(long maxMultipartPartSize) {
+        this.maxMultipartPartSize = maxMultipartPartSize;
+    }
+
+    public long getMaxMultipartPartSize() {
+        return maxMultipartPartSize;
+    }
+
+    /**
+     * Sets the maximum size of the multipart/form-data bodies parsed by
+     * parseBody (-1, the default, for no limit).
+     */
+    public void setMaxMultipartSize(long maxMultipartSize) {
+        this.maxMultipartSize = maxMultipartSize;
+    }
+
+    public long getMaxMultipartSize() {
+        return maxMultipartSize;
+    }
+
     /**
      * Call before start() to serve over HTTPS instead of HTTP
      */
@@ -2326,25 +5169,84 @@ public abstract class NanoHTTPD {
      *             if the socket is in use.
      */
     public void start(final int timeout, boolean daemon) throws IOException {
-        this.myServerSocket = this.getServerSocketFactory().create();
-        this.myServerSocket.setReuseAddress(true);
-
-        ServerRunnable serverRunnable = createServerRunnable(timeout);
-        this.myThread = new Thread(serverRunnable);
-        this.myThread.setDaemon(daemon);
-        this.myThread.setName("NanoHttpd Main Listener");
-        this.myThread.start();
-        while (!serverRunnable.hasBinded && serverRunnable.bindException == null) {
-            try {
-                Thread.sleep(10L);
-            } catch (Throwable e) {
-                // on android this may not be allowed, that's why we
-                // catch throwable the wait should be very short because we are
-                // just waiting for the bind of the socket
-            }
+        boolean selector = this.selectorEngine && this.serverSocketFactory instanceof DefaultServerSocketFactory;
+        if (this.selectorEngine && !selector) {
+            NanoHTTPD.LOG.log(Level.WARNING, "selector engine requires the default server socket factory, using blocking connections");
         }
-        if (serverRunnable.bindException != null) {
-            throw serverRunnable.bindException;
+        int acceptors = Math.max(1, this.listenerOptions.getAcceptors());
+        List<ServerSocket> inherited = this.inheritedSockets;
+        this.inheritedSockets = null;
+        if (inherited != null) {
+            // at least one acceptor per listening socket taken over
+            acceptors = Math.max(acceptors, inherited.size());
+        }
+        this.startTimeout = timeout;
+        this.startDaemon = daemon;
+        this.draining = false;
+        this.connectionManager.start(timeout, daemon);
+
+        this.serverSockets.clear();
+        this.serverRunnables.clear();
+        this.acceptorThreads.clear();
+        this.myServerSocket = null;
+        try {
+            // with SO_REUSEPORT each acceptor has its own listening socket,
+            // otherwise they all accept from the same one
+            for (int i = 0; i < acceptors; i++) {
+                ServerSocket serverSocket = null;
+                if (inherited != null) {
+                    serverSocket = i < inherited.size() ? inherited.get(i) : null;
+                } else if (i == 0 || this.listenerOptions.isReusePort() && this.serverSockets.size() == i) {
+                    serverSocket = createServerSocket(selector);
+                    if (serverSocket == null && i == 0) {
+                        NanoHTTPD.LOG.log(Level.WARNING, "SO_REUSEPORT isn't supported, using a single listening socket");
+                        ListenerOptions options = this.listenerOptions.copy();
+                        options.setReusePort(false);
+                        this.listenerOptions = options;
+                        serverSocket = createServerSocket(selector);
+                    }
+                }
+                if (serverSocket != null) {
+                    this.serverSockets.add(serverSocket);
+                    if (this.myServerSocket == null) {
+                        this.myServerSocket = serverSocket;
+                    }
+                }
+
+                ServerRunnable serverRunnable = createServerRunnable(timeout);
+                serverRunnable.serverSocket = serverSocket != null ? serverSocket : this.serverSockets.get(i % this.serverSockets.size());
+                serverRunnable.bind = serverSocket != null && inherited == null;
+                this.serverRunnables.add(serverRunnable);
+
+                Thread thread = new Thread(serverRunnable);
+                thread.setDaemon(daemon);
+                thread.setName(i == 0 ? "NanoHttpd Main Listener" : "NanoHttpd Listener " + i);
+                this.acceptorThreads.add(thread);
+                if (i == 0) {
+                    this.serverRunnable = serverRunnable;
+                    this.myThread = thread;
+                }
+                // one at a time so all bind to the same (even ephemeral) port
+                thread.start();
+                while (!serverRunnable.hasBinded && serverRunnable.bindException == null) {
+                    try {
+                        Thread.sleep(10L);
+                    } catch (Throwable e) {
+                        // on android this may not be allowed, that's why we
+                        // catch throwable the wait should be very short because we are
+                        // just waiting for the bind of the socket
+                    }
+                }
+                if (serverRunnable.bindException != null) {
+                    throw serverRunnable.bindException;
+                }
+            }
+        } catch (IOException e) {
+            for (ServerSocket serverSocket : this.serverSockets) {
+                safeClose(serverSocket);
+            }
+            this.connectionManager.stop();
+            throw e;
         }
     }
 
@@ -2353,16 +5255,130 @@ public abstract class NanoHTTPD {
      */
     public void stop() {
         try {
-            safeClose(this.myServerSocket);
+            boolean handedOver = this.successor != null;
+            if (!handedOver) {
+                closeListeners();
+            }
+            for (ServerRunnable serverRunnable : this.serverRunnables) {
+                serverRunnable.stopped = true;
+                if (serverRunnable instanceof SelectorServerRunnable) {
+                    ((SelectorServerRunnable) serverRunnable).wakeup();
+                }
+            }
             this.asyncRunner.closeAll();
-            if (this.myThread != null) {
-                this.myThread.join();
+            for (int i = 0; i < this.acceptorThreads.size(); i++) {
+                // once handed over the blocked acceptors pass the next
+                // connection to the successor and end
+                if (!handedOver || !this.serverRunnables.get(i).blocking) {
+                    this.acceptorThreads.get(i).join();
+                }
             }
+            this.connectionManager.stop();
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not stop all connections", e);
         }
     }
 
+    private void closeListeners() {
+        safeClose(this.myServerSocket);
+        for (ServerSocket serverSocket : this.serverSockets) {
+            safeClose(serverSocket);
+        }
+    }
+
+    /**
+     * Gracefully stops the server: stops accepting connections, closes the
+     * idle keep-alive connections and lets the requests in flight finish (
+     * answered with "Connection: close") up to timeout milliseconds. The
+     * connections left are then closed as by stop().
+     * 
+     * @param timeout
+     *            the maximum time (in milliseconds) to wait for the
+     *            requests in flight.
+     * @return true if all the connections were closed before the timeout.
+     */
+    public boolean drain(long timeout) {
+        this.draining = true;
+        if (this.successor == null) {
+            closeListeners();
+        }
+        for (ServerRunnable serverRunnable : this.serverRunnables) {
+            if (serverRunnable instanceof SelectorServerRunnable) {
+                ((SelectorServerRunnable) serverRunnable).wakeup();
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean drained;
+        while (true) {
+            // also the connections that became idle meanwhile
+            drainConnections();
+            drained = this.connectionManager.getOpenConnections() == 0;
+            if (drained || System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        stop();
+        return drained;
+    }
+
+    /**
+     * Hands the listening sockets over to a successor, not yet started, that
+     * starts accepting the new connections right away, and drains this
+     * server. Allows replacing a running server in the same JVM without
+     * refusing connections.
+     * <p/>
+     * Both servers should use the same engine (see
+     * {@link #setSelectorEngine(boolean)}) and each its own async runner.
+     * 
+     * @param successor
+     *            the server taking over the listening sockets.
+     * @param timeout
+     *            the maximum time (in milliseconds) to wait for the
+     *            requests in flight on this server.
+     * @return true if all the connections were closed before the timeout.
+     * @throws IOException
+     *             if the successor couldn't be started.
+     */
+    public boolean handOver(NanoHTTPD successor, long timeout) throws IOException {
+        if (successor.wasStarted() || successor == this) {
+            throw new IllegalStateException("The successor was already started");
+        }
+        if (successor.asyncRunner == this.asyncRunner) {
+            throw new IllegalArgumentException("The successor needs its own async runner");
+        }
+        if (successor.isSelectorEngine() != this.isSelectorEngine()) {
+            throw new IllegalArgumentException("The successor should use the same engine");
+        }
+        if (!isAlive()) {
+            throw new IllegalStateException("The server isn't running");
+        }
+
+        successor.inheritedSockets = new ArrayList<ServerSocket>(this.serverSockets);
+        successor.start(this.startTimeout, this.startDaemon);
+        this.successor = successor;
+        return drain(timeout);
+    }
+
+    /**
+     * Closes, while draining, the connections that won't serve any more
+     * requests (the idle keep-alive connections). Subclasses can close their
+     * long lived connections (e.g. web sockets).
+     */
+    protected void drainConnections() {
+        this.connectionManager.closeIdle();
+    }
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
     public final boolean wasStarted() {
         return this.myServerSocket != null && this.myThread != null;
     }
@@ -45,6 +45,9 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,8 +77,15 @@ public abstract class NanoWSD extends NanoHTTPD {
 
         private State state = State.UNCONNECTED;
 
+        private final ReentrantLock sendLock = new ReentrantLock();
+
         private final NanoHTTPD.IHTTPSession handshakeRequest;
 
+        /**
+         * The open web sockets of the server (to close them when draining).
+         */
+        private Set<WebSocket> openWebSockets;
+
         private final NanoHTTPD.Response handshakeResponse = new NanoHTTPD.Response(NanoHTTPD.Response.Status.SWITCH_PROTOCOL, null, (InputStream) null, 0) {
 
             @Override
@@ -84,6 +94,9 @@ public abstract class NanoWSD extends NanoHTTPD {
                 WebSocket.this.state = State.CONNECTING;
                 super.send(out);
                 WebSocket.this.state = State.OPEN;
+                if (WebSocket.this.openWebSockets != null) {
+                    WebSocket.this.openWebSockets.add(WebSocket.this);
+                }
                 WebSocket.this.onOpen();
                 readWebsocket();
             }
@@ -159,6 +172,9 @@ public abstract class NanoWSD extends NanoHTTPD {
                 }
             }
             this.state = State.CLOSED;
+            if (this.openWebSockets != null) {
+                this.openWebSockets.remove(this);
+            }
             onClose(code, reason, initiatedByRemote);
         }
 
@@ -268,9 +284,16 @@ public abstract class NanoWSD extends NanoHTTPD {
             sendFrame(new WebSocketFrame(OpCode.Text, true, payload));
         }
 
-        public synchronized void sendFrame(WebSocketFrame frame) throws IOException {
-            debugFrameSent(frame);
-            frame.write(this.out);
+        public void sendFrame(WebSocketFrame frame) throws IOException {
+            // a lock instead of synchronized so a blocked write doesn't pin
+            // the carrier when running on a virtual thread
+            this.sendLock.lock();
+            try {
+                debugFrameSent(frame);
+                frame.write(this.out);
+            } finally {
+                this.sendLock.unlock();
+            }
         }
     }
 
@@ -759,6 +782,8 @@ public abstract class NanoWSD extends NanoHTTPD {
 
     private final static String WEBSOCKET_KEY_MAGIC = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 
+    private final Set<WebSocket> openWebSockets = ConcurrentHashMap.newKeySet();
+
     private final static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
 
     /**
@@ -845,6 +870,7 @@ public abstract class NanoWSD extends NanoHTTPD {
             }
 
             WebSocket webSocket = openWebSocket(session);
+            webSocket.openWebSockets = this.openWebSockets;
             Response handshakeResponse = webSocket.getHandshakeResponse();
             try {
                 handshakeResponse.addHeader(NanoWSD.HEADER_WEBSOCKET_ACCEPT, makeAcceptKey(headers.get(NanoWSD.HEADER_WEBSOCKET_KEY)));
@@ -867,6 +893,23 @@ public abstract class NanoWSD extends NanoHTTPD {
         return super.serve(session);
     }
 
+    /**
+     * Also sends a close frame (going away) to the open web sockets.
+     */
+    @Override
+    protected void drainConnections() {
+        super.drainConnections();
+        for (WebSocket webSocket : this.openWebSockets) {
+            if (webSocket.isOpen()) {
+                try {
+                    webSocket.close(CloseCode.GoingAway, "Server shutting down", false);
+                } catch (IOException e) {
+                    NanoWSD.LOG.log(Level.FINE, "close failed", e);
+                }
+            }
+        }
+    }
+
     /**
      * not all websockets implementations accept gzip compression.
      */
@@ -18,6 +18,10 @@
  */
 package com.nwu.httpd;
 
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 
@@ -30,6 +34,9 @@ public class Request {
 	Map<String, String> header;
 	Map<String, String> params;
 	Map<String, String> files;
+	Map<String, String> pathParams = Collections.emptyMap();
+	InputStream body;
+	Map<String, String> trailers = Collections.emptyMap();
 	
 	public enum MethodType {
 		GET,
@@ -72,6 +79,23 @@ public class Request {
 		this.originalURI = originalURI;
 	}
 	
+	/**
+	 * Clears this request so it can be reused for the next request of the
+	 * same connection (see HTTPSession). The params and files maps are
+	 * cleared, not replaced.
+	 */
+	public void recycle() {
+		this.uri = null;
+		this.originalURI = null;
+		this.method = null;
+		this.header = null;
+		if (this.params != null) this.params.clear();
+		if (this.files != null) this.files.clear();
+		this.pathParams = Collections.emptyMap();
+		this.body = null;
+		this.trailers = Collections.emptyMap();
+	}
+	
 	public String getUri() {
 		return uri;
 	}
@@ -119,5 +143,81 @@ public class Request {
 	public Map<String, String> getFiles() {
 		return files;
 	}
+	
+	/**
+	 * Path parameters captured by the matched route (e.g. "id" for a route
+	 * registered as "/users/{id}"). The rest of the path after the route, if
+	 * any, is under "*".
+	 * 
+	 * @return The path parameters (empty if none).
+	 */
+	public Map<String, String> getPathParams() {
+		return pathParams;
+	}
+	
+	public String getPathParam(String name) {
+		return pathParams.get(name);
+	}
+	
+	public void setPathParams(Map<String, String> pathParams) {
+		this.pathParams = pathParams;
+	}
+	
+	/**
+	 * The request body, limited to its length (or decoded if chunked), if 
+	 * the registered URI has the "body" = "stream" property (the files and 
+	 * the body parameters aren't filled in that case). It should be read 
+	 * while executing the response; what's left unread is discarded.
+	 * 
+	 * @return The body stream or null if the body wasn't streamed.
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+	
+	public void setBody(InputStream body) {
+		this.body = body;
+	}
+	
+	/**
+	 * The request body as a channel (see getBody()).
+	 * 
+	 * @return The body channel or null if the body wasn't streamed.
+	 */
+	public ReadableByteChannel getBodyChannel() {
+		return (body == null) ? null : Channels.newChannel(body);
+	}
+	
+	public boolean isBodyStreamed() {
+		return body != null;
+	}
+	
+	/**
+	 * The trailer headers of a chunked body (lower case names). For a
+	 * streamed body they're only available after reading it to the end.
+	 * 
+	 * @return The trailers (empty if none).
+	 */
+	public Map<String, String> getTrailers() {
+		return trailers;
+	}
+	
+	public void setTrailers(Map<String, String> trailers) {
+		this.trailers = trailers;
+	}
+	
+	/**
+	 * Parses a streamed multipart/form-data body as it's read (see 
+	 * NanoHTTPD.MultipartStream), part by part.
+	 * 
+	 * @return The multipart parser or null if the body wasn't streamed or 
+	 * isn't multipart/form-data.
+	 */
+	public NanoHTTPD.MultipartStream getMultipart() {
+		if (body == null) return null;
+		NanoHTTPD.ContentType contentType = new NanoHTTPD.ContentType(header.get("content-type"));
+		if (!contentType.isMultipart() || contentType.getBoundary() == null) return null;
+		return new NanoHTTPD.MultipartStream(body, contentType.getBoundary(), contentType.getEncoding());
+	}
 
 }
@@ -0,0 +1,400 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.nwu.httpd.NanoHTTPD.Response.IStatus;
+import com.nwu.httpd.Request.MethodType;
+import com.nwu.log.Log.Type;
+import com.nwu.util.CacheableObject;
+import com.nwu.util.SimpleCache;
+import com.nwu.util.SimpleCacheConfig;
+
+/**
+ * Server side cache of the responses of registered URIs. It's opt-in per URI
+ * using the URI properties:
+ * <ul>
+ *  <li>cache.ttl - Number of seconds to keep a response (required to enable the cache).</li>
+ *  <li>cache.params - Comma separated list of the request parameters that
+ *  identify a response (by default all).</li>
+ *  <li>cache.headers - Comma separated list of the request headers that
+ *  identify a response (by default none).</li>
+ *  <li>cache.gzip - If "false" won't keep a gzip copy of the responses for
+ *  clients that accept it (by default true for mime types compressed by the
+ *  server).</li>
+ *  <li>cache.invalidateonwrite - If "false" PUT, POST and DELETE requests
+ *  won't invalidate the cached responses of the URI (by default true).</li>
+ * </ul>
+ * Only GET and HEAD requests answered with HTTP 200 are cached and never if
+ * the request has credentials (unless the authorization header is part of
+ * cache.headers) or the response sets cookies or forbids caching.
+ * <br><br>
+ * The responses are kept, fully encoded, on a SimpleCache bounded by the
+ * total size of the bodies.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class ResponseCache {
+	public static final String PROP_TTL = "cache.ttl";
+	public static final String PROP_PARAMS = "cache.params";
+	public static final String PROP_HEADERS = "cache.headers";
+	public static final String PROP_GZIP = "cache.gzip";
+	public static final String PROP_INVALIDATE_ON_WRITE = "cache.invalidateonwrite";
+
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	public static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+	protected final SimpleCacheConfig conf;
+	protected final SimpleCache cache;
+	protected final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	protected volatile int maxEntrySize = DEFAULT_MAX_ENTRY_BYTES;
+
+	/**
+	 * The cache settings of a registered URI.
+	 */
+	public static class Policy {
+		protected long ttl;
+		protected String[] params;
+		protected String[] headers;
+		protected boolean gzip = true;
+		protected boolean invalidateOnWrite = true;
+
+		/**
+		 * Obtains the cache settings from the URI properties.
+		 *
+		 * @param props The URI properties.
+		 * @return The policy or null if the cache isn't enabled.
+		 */
+		public static Policy fromProps(Map<String, String> props) {
+			if (props == null || props.get(PROP_TTL) == null) return null;
+
+			Policy policy = new Policy();
+			try {
+				policy.ttl = Long.parseLong(props.get(PROP_TTL).trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (policy.ttl <= 0) return null;
+
+			policy.params = split(props.get(PROP_PARAMS), false);
+			policy.headers = split(props.get(PROP_HEADERS), true);
+			policy.gzip = !"false".equalsIgnoreCase(props.get(PROP_GZIP));
+			policy.invalidateOnWrite = !"false".equalsIgnoreCase(props.get(PROP_INVALIDATE_ON_WRITE));
+			return policy;
+		}
+
+		protected static String[] split(String value, boolean lowerCase) {
+			if (value == null) return null;
+			String[] values = value.split(",");
+			for (int i = 0; i < values.length; i++) {
+				values[i] = lowerCase ? values[i].trim().toLowerCase() : values[i].trim();
+			}
+			Arrays.sort(values);
+			return values;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	protected static class CachedResponse extends CacheableObject {
+		protected final IStatus status;
+		protected final String mimeType;
+		protected final Map<String, String> headers;
+		protected final byte[] body;
+		protected final byte[] gzip;
+		protected final Validator validator;
+		protected final Validator gzipValidator;
+
+		protected CachedResponse(IStatus status, String mimeType, Map<String, String> headers, byte[] body, byte[] gzip) {
+			this.status = status;
+			this.mimeType = mimeType;
+			this.headers = headers;
+			this.body = body;
+			this.gzip = gzip;
+			this.validator = Validator.fromHeaders(headers);
+			this.gzipValidator = (validator != null && gzip != null) ? validator.withSuffix("gz") : validator;
+		}
+
+		@Override
+		public long getWeight() {
+			return body.length + ((gzip != null) ? gzip.length : 0);
+		}
+	}
+
+	public ResponseCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes The maximum size of all cached responses.
+	 */
+	public ResponseCache(long maxBytes) {
+		conf = new SimpleCacheConfig();
+		conf.setTickMillis(1000);
+		conf.setLimitObjectInCacheAge(-1);
+		conf.setMaxWeight(maxBytes);
+		cache = new SimpleCache(conf);
+	}
+
+	/**
+	 * Answers a request from the cache or, if not cached, using the factory
+	 * and caching the response.
+	 *
+	 * @param factory The response factory of the registered URI.
+	 * @param request The request.
+	 * @return The NanoHTTPD response.
+	 */
+	public NanoHTTPD.Response serve(ResponseFactory factory, Request request) {
+		Policy policy = factory.getCachePolicy();
+		MethodType method = request.getMethod();
+
+		if (method != MethodType.GET && method != MethodType.HEAD) {
+			NanoHTTPD.Response res = factory.serveUncached(request);
+			if (policy.invalidateOnWrite && (method == MethodType.POST || method == MethodType.PUT || method == MethodType.DELETE)) {
+				invalidate(factory.getURI());
+			}
+			return res;
+		}
+
+		String key = key(factory.getURI(), policy, request);
+		if (key == null) return factory.serveUncached(request);
+
+		CachedResponse cached = (CachedResponse) cache.getCachedObject(key);
+		if (cached != null) return toResponse(cached, request);
+
+		NanoHTTPD.Response res = factory.serveUncached(request);
+		if (res == null || res.getStatus() == null || res.getStatus().getRequestStatus() != 200 || !cacheable(res)) return res;
+
+		cached = store(factory, policy, key, res);
+		return (cached != null) ? toResponse(cached, request) : res;
+	}
+
+	/**
+	 * Builds the cache key: registered URI generation, method (so a HEAD
+	 * response never answers a GET), URI, selected params and headers.
+	 * Returns null if the request shouldn't be cached. The request values
+	 * are length prefixed (see {@link #appendKeyPart}) so that different
+	 * requests never get the same key.
+	 */
+	protected String key(String rURI, Policy policy, Request request) {
+		Map<String, String> reqHeaders = request.getHeader();
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(generation(rURI).get()).append(' ').append(request.getMethod()).append(' ').append(rURI).append(' ');
+		appendKeyPart(sb, request.getUri());
+
+		Map<String, String> params = request.getParams();
+		if (params != null) {
+			if (policy.params == null) {
+				for (Map.Entry<String, String> param : new TreeMap<String, String>(params).entrySet()) {
+					if (NanoHTTPD.QUERY_STRING_PARAMETER.equals(param.getKey())) continue;
+					appendKeyPart(sb, param.getKey());
+					appendKeyPart(sb, param.getValue());
+				}
+			} else {
+				for (String name : policy.params) {
+					appendKeyPart(sb, name);
+					appendKeyPart(sb, params.get(name));
+				}
+			}
+		}
+
+		boolean keyedByAuth = false;
+		if (policy.headers != null && reqHeaders != null) {
+			for (String name : policy.headers) {
+				appendKeyPart(sb, name);
+				appendKeyPart(sb, reqHeaders.get(name));
+				if (name.equals("authorization")) keyedByAuth = true;
+			}
+		}
+
+		if (!keyedByAuth && reqHeaders != null && reqHeaders.containsKey("authorization")) return null;
+		return sb.toString();
+	}
+
+	/**
+	 * Appends a key part as its length, ':' and the value (or just '-' if
+	 * null).
+	 */
+	protected static void appendKeyPart(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append('-');
+		} else {
+			sb.append(value.length()).append(':').append(value);
+		}
+	}
+
+	protected boolean cacheable(NanoHTTPD.Response res) {
+		if (res.getHeader("set-cookie") != null) return false;
+		String cacheControl = res.getHeader("cache-control");
+		if (cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase();
+			if (cacheControl.contains("no-store") || cacheControl.contains("private")) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads and caches the response body. Returns null, restoring the response
+	 * data, if it's too big.
+	 */
+	protected CachedResponse store(ResponseFactory factory, Policy policy, String key, NanoHTTPD.Response res) {
+		InputStream data = res.getData();
+		int max = maxEntrySize;
+		byte[] body;
+
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int read;
+			while (bout.size() <= max && (read = data.read(buf, 0, buf.length)) > 0) {
+				bout.write(buf, 0, read);
+			}
+			body = bout.toByteArray();
+
+			if (body.length > max) {
+				res.setData(new SequenceInputStream(new ByteArrayInputStream(body), data));
+				return null;
+			}
+			data.close();
+		} catch (IOException e) {
+			factory.httpd.getLog().log(Type.ERROR, "Couldn't cache response for URI = '" + factory.getURI() + "': " + e.getMessage());
+			try { data.close(); } catch (IOException e1) { }
+			return null;
+		}
+
+		byte[] gzip = null;
+		if (policy.gzip && res.getHeader("content-encoding") == null && factory.httpd.useGzipWhenAccepted(res)) {
+			gzip = gzip(body);
+		}
+
+		Map<String, String> headers = new HashMap<String, String>(res.getHeaders());
+		headers.remove("Content-Length");
+		headers.remove("content-length");
+
+		CachedResponse cached = new CachedResponse(res.getStatus(), res.getMimeType(), headers, body, gzip);
+		cache.addObjectToCacheWithTimeLimit(key, cached, policy.ttl);
+		return cached;
+	}
+
+	protected static byte[] gzip(byte[] body) {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, body.length / 3));
+			GZIPOutputStream gout = new GZIPOutputStream(bout);
+			gout.write(body);
+			gout.close();
+			return bout.toByteArray();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	protected NanoHTTPD.Response toResponse(CachedResponse cached, Request request) {
+		String acceptEncoding = (request.getHeader() != null) ? request.getHeader().get("accept-encoding") : null;
+		boolean gzip = cached.gzip != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+
+		// each encoding has its own entity tag
+		Validator validator = gzip ? cached.gzipValidator : cached.validator;
+		if (validator != null && validator.isNotModified(request)) {
+			NanoHTTPD.Response res = validator.notModified();
+			String cacheControl = cached.headers.get("Cache-Control");
+			if (cacheControl != null) res.addHeader("Cache-Control", cacheControl);
+			if (cached.gzip != null) res.addHeader("Vary", "Accept-Encoding");
+			return res;
+		}
+		byte[] body = gzip ? cached.gzip : cached.body;
+
+		NanoHTTPD.Response res = NanoHTTPD.newFixedLengthResponse(cached.status, cached.mimeType, new ByteArrayInputStream(body), body.length);
+		for (Map.Entry<String, String> header : cached.headers.entrySet()) {
+			if (gzip && "etag".equalsIgnoreCase(header.getKey())) continue;
+			res.addHeader(header.getKey(), header.getValue());
+		}
+		if (cached.gzip != null) res.addHeader("Vary", "Accept-Encoding");
+		if (gzip) {
+			res.addHeader("Content-Encoding", "gzip");
+			if (validator != null) validator.addHeaders(res);
+		}
+		return res;
+	}
+
+	protected AtomicLong generation(String rURI) {
+		AtomicLong generation = generations.get(rURI);
+		if (generation == null) {
+			generation = generations.computeIfAbsent(rURI, k -> new AtomicLong());
+		}
+		return generation;
+	}
+
+	/**
+	 * Invalidates all cached responses of a registered URI (they will no
+	 * longer be found and will be evicted or expire).
+	 *
+	 * @param rURI The registered URI.
+	 */
+	public void invalidate(String rURI) {
+		generation(rURI).incrementAndGet();
+	}
+
+	/**
+	 * Removes all cached responses.
+	 */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * The underlying cache (e.g. to obtain statistics or to add it to a
+	 * com.nwu.util.TimeTask).
+	 *
+	 * @return The SimpleCache.
+	 */
+	public SimpleCache getCache() {
+		return cache;
+	}
+
+	public int getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Sets the maximum size of the body of a response to be cached.
+	 *
+	 * @param maxEntrySize The size in bytes.
+	 */
+	public void setMaxEntrySize(int maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+	}
+}
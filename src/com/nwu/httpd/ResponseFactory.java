@@ -0,0 +1,300 @@
+/**       
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+import com.nwu.httpd.metrics.RouteMetrics;
+import com.nwu.httpd.responses.Response;
+import com.nwu.httpd.responses.StatelessResponse;
+import com.nwu.log.Log.Type;
+
+/**
+ * Provides the com.nwu.httpd.responses.Response instances to answer the
+ * requests of a registered URI without using reflection on each request.
+ * 
+ * <ul>
+ *  <li>Registered instances and classes implementing StatelessResponse are
+ *  created once and shared by all requests.</li>
+ *  <li>If the URI properties have "pool" = "thread" one instance is kept, and 
+ *  recycled, per thread.</li>
+ *  <li>Otherwise a new instance is created, per request, using a cached 
+ *  constructor handle.</li>
+ * </ul>
+ * 
+ * Conditional requests are answered with 304 Not Modified, before the body is
+ * produced, if the response provides a Validator. The "cache.control" URI 
+ * property sets the Cache-Control header of the responses (e.g. 
+ * "public, max-age=3600") unless they set their own.
+ * <br><br>
+ * With the "body" = "stream" URI property the PUT/POST bodies aren't parsed
+ * (nor buffered into temporary files): the response reads them, as they 
+ * arrive, from Request.getBody() (or getBodyChannel()).
+ * 
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class ResponseFactory {
+	/**
+	 * URI property to set the pooling of the response instances (only "thread"
+	 * is supported).
+	 */
+	public static final String PROP_POOL = "pool";
+	public static final String POOL_THREAD = "thread";
+	/**
+	 * URI property with the Cache-Control header value of the responses.
+	 */
+	public static final String PROP_CACHE_CONTROL = "cache.control";
+	/**
+	 * URI property to set how the request bodies are handed to the responses
+	 * (only "stream" is supported).
+	 */
+	public static final String PROP_BODY = "body";
+	public static final String BODY_STREAM = "stream";
+	
+	protected static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class, IHTTPd.class, String.class, Map.class);
+	
+	protected final IHTTPd httpd;
+	protected final String rURI;
+	protected final Map<String, String> props;
+	protected final Class<?> responseClass;
+	protected final MethodHandle constructor;
+	protected final Response instance;
+	protected final ThreadLocal<Response> pool;
+	protected RouteMetrics metrics = new RouteMetrics();
+	protected final ResponseCache.Policy cachePolicy;
+	protected final String cacheControl;
+	protected final boolean streamingBody;
+
+	/**
+	 * Creates a factory for a response class.
+	 * 
+	 * @param httpd The httpd server context.
+	 * @param rURI The registered URI.
+	 * @param aClass The com.nwu.httpd.responses.Response sub-class.
+	 * @param props The URI properties.
+	 */
+	public ResponseFactory(IHTTPd httpd, String rURI, Class<?> aClass, Map<String, String> props) {
+		this.httpd = httpd;
+		this.rURI = rURI;
+		this.props = props;
+		this.responseClass = aClass;
+		this.constructor = findConstructor(aClass);
+		this.cachePolicy = ResponseCache.Policy.fromProps(props);
+		this.cacheControl = (props != null) ? props.get(PROP_CACHE_CONTROL) : null;
+		this.streamingBody = (props != null) && BODY_STREAM.equalsIgnoreCase(props.get(PROP_BODY));
+		
+		if (this.constructor != null && StatelessResponse.class.isAssignableFrom(aClass)) {
+			if (overridesServe(aClass)) {
+				this.instance = newInstance();
+				this.pool = null;
+				return;
+			}
+			httpd.getLog().log(Type.ERROR, "Response class '" + aClass.getName() + "' is stateless but doesn't override serve(Request). Won't be shared.");
+		}
+		
+		this.instance = null;
+		if (props != null && POOL_THREAD.equalsIgnoreCase(props.get(PROP_POOL))) {
+			this.pool = new ThreadLocal<Response>();
+		} else {
+			this.pool = null;
+		}
+	}
+	
+	/**
+	 * Creates a factory for an already created, thread-safe, response instance.
+	 * 
+	 * @param httpd The httpd server context.
+	 * @param rURI The registered URI.
+	 * @param instance The response instance to share between all requests.
+	 */
+	public ResponseFactory(IHTTPd httpd, String rURI, Response instance) {
+		this.httpd = httpd;
+		this.rURI = rURI;
+		this.props = instance.getProps();
+		this.responseClass = instance.getClass();
+		this.constructor = null;
+		this.cachePolicy = ResponseCache.Policy.fromProps(this.props);
+		this.cacheControl = (this.props != null) ? this.props.get(PROP_CACHE_CONTROL) : null;
+		this.streamingBody = (this.props != null) && BODY_STREAM.equalsIgnoreCase(this.props.get(PROP_BODY));
+		this.instance = instance;
+		this.pool = null;
+	}
+	
+	protected MethodHandle findConstructor(Class<?> aClass) {
+		try {
+			return MethodHandles.publicLookup().findConstructor(aClass, CONSTRUCTOR_TYPE)
+				.asType(MethodType.methodType(Response.class, IHTTPd.class, String.class, Map.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			httpd.getLog().log(Type.ERROR, "Response class '" + aClass.getName() + "' doesn't have a public (IHTTPd, String, Map) constructor: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	protected static boolean overridesServe(Class<?> aClass) {
+		try {
+			return aClass.getMethod("serve", Request.class).getDeclaringClass() != Response.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates a new response instance.
+	 * 
+	 * @return The new instance or null if it couldn't be created.
+	 */
+	protected Response newInstance() {
+		if (constructor == null) return null;
+		
+		try {
+			return (Response) constructor.invokeExact(httpd, rURI, props);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			httpd.getLog().log(Type.ERROR, "Couldn't create response '" + responseClass.getName() + "' for URI = '" + rURI + "': " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Answers the request (from the httpd ResponseCache if enabled for the URI).
+	 * 
+	 * @param request The request.
+	 * @return The NanoHTTPD response or null if no response instance could be
+	 * obtained.
+	 */
+	public com.nwu.httpd.NanoHTTPD.Response serve(Request request) {
+		if (cachePolicy != null && httpd.getResponseCache() != null) {
+			return httpd.getResponseCache().serve(this, request);
+		}
+		return serveUncached(request);
+	}
+	
+	/**
+	 * Answers the request using the response instance.
+	 * 
+	 * @param request The request.
+	 * @return The NanoHTTPD response or null if no response instance could be
+	 * obtained.
+	 */
+	public com.nwu.httpd.NanoHTTPD.Response serveUncached(Request request) {
+		if (instance != null) {
+			return serve(instance, request);
+		}
+		
+		if (pool != null) {
+			Response response = pool.get();
+			if (response == null) {
+				response = newInstance();
+				if (response == null) return null;
+				pool.set(response);
+			}
+			try {
+				return serve(response, request);
+			} finally {
+				response.recycle();
+			}
+		}
+		
+		Response response = newInstance();
+		return (response == null) ? null : serve(response, request);
+	}
+	
+	/**
+	 * Answers the request with a response instance evaluating the
+	 * conditional request headers against the response validator.
+	 */
+	protected com.nwu.httpd.NanoHTTPD.Response serve(Response response, Request request) {
+		Validator validator = response.getValidator(request);
+		com.nwu.httpd.NanoHTTPD.Response res;
+		
+		if (validator != null && validator.isNotModified(request)) {
+			res = validator.notModified();
+		} else {
+			res = response.serve(request);
+			if (validator != null && res != null) validator.addHeaders(res);
+		}
+		
+		if (cacheControl != null && res != null && res.getHeader("cache-control") == null) {
+			res.addHeader("Cache-Control", cacheControl);
+		}
+		return res;
+	}
+	
+	/**
+	 * @return True if a single response instance is shared by all requests.
+	 */
+	public boolean isShared() {
+		return instance != null;
+	}
+	
+	public boolean isPooled() {
+		return pool != null;
+	}
+	
+	/**
+	 * @return The cache settings of the URI or null if not cached.
+	 */
+	public ResponseCache.Policy getCachePolicy() {
+		return cachePolicy;
+	}
+	
+	/**
+	 * @return The Cache-Control header value of the URI responses or null.
+	 */
+	public String getCacheControl() {
+		return cacheControl;
+	}
+	
+	/**
+	 * @return True if the responses read the request bodies as a stream.
+	 */
+	public boolean isStreamingBody() {
+		return streamingBody;
+	}
+	
+	/**
+	 * The metrics of the registered URI.
+	 * 
+	 * @return The RouteMetrics.
+	 */
+	public RouteMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public void setMetrics(RouteMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Class<?> getResponseClass() {
+		return responseClass;
+	}
+	
+	public String getURI() {
+		return rURI;
+	}
+	
+	public Map<String, String> getProps() {
+		return props;
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+
+import com.nwu.httpd.Request.MethodType;
+
+/**
+ * The validators (ETag and/or Last-Modified) of a resource used to answer
+ * conditional requests (If-None-Match and If-Modified-Since) with a 304 Not
+ * Modified instead of the full response.
+ * <br><br>
+ * Usage (on a com.nwu.httpd.responses.Response):
+ * <pre>
+ * public Validator getValidator(Request request) {
+ *    return Validator.weak(Long.toHexString(version), lastUpdate);
+ * }
+ * </pre>
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class Validator {
+	protected static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	protected final String etag;
+	protected final long lastModified;
+
+	/**
+	 * @param etag The entity tag, quoted and optionally prefixed by W/ (or null).
+	 * @param lastModified The modification time in ms (or -1).
+	 */
+	public Validator(String etag, long lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * A validator with a strong entity tag (the representation is byte for
+	 * byte the same while the tag doesn't change).
+	 *
+	 * @param opaqueTag The tag (without quotes).
+	 * @param lastModified The modification time in ms (or -1).
+	 */
+	public static Validator strong(String opaqueTag, long lastModified) {
+		return new Validator("\"" + opaqueTag + "\"", lastModified);
+	}
+
+	/**
+	 * A validator with a weak entity tag (the representation is semantically
+	 * the same while the tag doesn't change).
+	 *
+	 * @param opaqueTag The tag (without quotes).
+	 * @param lastModified The modification time in ms (or -1).
+	 */
+	public static Validator weak(String opaqueTag, long lastModified) {
+		return new Validator("W/\"" + opaqueTag + "\"", lastModified);
+	}
+
+	/**
+	 * The validator of a file based on its size and modification time.
+	 *
+	 * @param length The file size.
+	 * @param lastModified The file modification time in ms.
+	 * @param suffix Identifies the encoding (e.g. "gz") or null.
+	 */
+	public static Validator forFile(long length, long lastModified, String suffix) {
+		return strong(Long.toHexString(length) + "-" + Long.toHexString(lastModified) + ((suffix != null) ? "-" + suffix : ""), lastModified);
+	}
+
+	/**
+	 * The validator of another encoding (e.g. gzip) of the same
+	 * representation: the entity tag gets a suffix so that each encoding
+	 * has its own tag.
+	 *
+	 * @param suffix Identifies the encoding (e.g. "gz").
+	 */
+	public Validator withSuffix(String suffix) {
+		if (etag == null) return this;
+		if (!etag.endsWith("\"")) return new Validator(etag + "-" + suffix, lastModified);
+		return new Validator(etag.substring(0, etag.length() - 1) + "-" + suffix + "\"", lastModified);
+	}
+
+	/**
+	 * Obtains the validator from the ETag and Last-Modified headers of a
+	 * response.
+	 *
+	 * @param headers The response headers.
+	 * @return The validator or null if there are none.
+	 */
+	public static Validator fromHeaders(Map<String, String> headers) {
+		String etag = null, lastModified = null;
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if ("etag".equalsIgnoreCase(header.getKey())) etag = header.getValue();
+			else if ("last-modified".equalsIgnoreCase(header.getKey())) lastModified = header.getValue();
+		}
+		if (etag == null && lastModified == null) return null;
+		return new Validator(etag, (lastModified != null) ? parseDate(lastModified) : -1);
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Evaluates the preconditions of a GET or HEAD request.
+	 *
+	 * @param request The request.
+	 * @return true if it should be answered with 304 Not Modified.
+	 */
+	public boolean isNotModified(Request request) {
+		if (request.getMethod() != MethodType.GET && request.getMethod() != MethodType.HEAD) return false;
+		return isNotModified(request.getHeader());
+	}
+
+	/**
+	 * Evaluates If-None-Match or, if not present, If-Modified-Since (RFC 7232).
+	 *
+	 * @param header The request headers (lower case names).
+	 * @return true if the resource wasn't modified.
+	 */
+	public boolean isNotModified(Map<String, String> header) {
+		if (header == null) return false;
+
+		String ifNoneMatch = header.get("if-none-match");
+		if (ifNoneMatch != null) return etag != null && matches(ifNoneMatch, false);
+
+		String ifModifiedSince = header.get("if-modified-since");
+		if (ifModifiedSince != null && lastModified >= 0) {
+			long date = parseDate(ifModifiedSince);
+			return date >= 0 && (lastModified / 1000) * 1000 <= date;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if a list of entity tags (e.g. If-None-Match) has this
+	 * validator entity tag.
+	 *
+	 * @param tags The comma separated entity tags or "*".
+	 * @param strong If the strong comparison should be used (weak tags never
+	 * match).
+	 */
+	public boolean matches(String tags, boolean strong) {
+		if (etag == null) return false;
+		if (tags.trim().equals("*")) return true;
+		if (strong && isWeak(etag)) return false;
+
+		String opaque = opaque(etag);
+		int i = 0, len = tags.length();
+		while (i < len) {
+			int start = tags.indexOf('"', i);
+			if (start < 0) break;
+			int end = tags.indexOf('"', start + 1);
+			if (end < 0) break;
+
+			boolean weak = start >= 2 && tags.charAt(start - 1) == '/' && (tags.charAt(start - 2) == 'W' || tags.charAt(start - 2) == 'w');
+			if (!(strong && weak) && tags.regionMatches(start, opaque, 0, opaque.length()) && end - start + 1 == opaque.length()) return true;
+			i = end + 1;
+		}
+		return false;
+	}
+
+	protected static boolean isWeak(String etag) {
+		return etag.startsWith("W/") || etag.startsWith("w/");
+	}
+
+	protected static String opaque(String etag) {
+		return isWeak(etag) ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * Adds the ETag and Last-Modified headers (unless already set).
+	 *
+	 * @param res The response.
+	 */
+	public void addHeaders(NanoHTTPD.Response res) {
+		if (etag != null && res.getHeader("etag") == null) res.addHeader("ETag", etag);
+		if (lastModified >= 0 && res.getHeader("last-modified") == null) res.addHeader("Last-Modified", formatDate(lastModified));
+	}
+
+	/**
+	 * Builds the 304 Not Modified response (without body).
+	 *
+	 * @return The NanoHTTPD response.
+	 */
+	public NanoHTTPD.Response notModified() {
+		NanoHTTPD.Response res = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, null, null, 0);
+		addHeaders(res);
+		return res;
+	}
+
+	/**
+	 * Formats an HTTP date (e.g. for Last-Modified).
+	 */
+	public static String formatDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses an HTTP date returning -1 if invalid.
+	 */
+	public static long parseDate(String date) {
+		try {
+			return HTTP_DATE.parse(date.trim(), Instant::from).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**       
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.nwu.httpd.NanoHTTPD.AsyncRunner;
+import com.nwu.httpd.NanoHTTPD.ClientHandler;
+
+/**
+ * Threading strategy that runs each connection on a virtual thread when the
+ * runtime supports it (Java 21 or later), falling back to a new daemon 
+ * platform thread per connection (as NanoHTTPD.DefaultAsyncRunner) otherwise.
+ * 
+ * Since the web socket read loop (NanoWSD.WebSocket) runs on the thread of
+ * the connection that did the handshake it will also run on a virtual thread.
+ * 
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class VirtualThreadAsyncRunner implements AsyncRunner {
+	protected static final String THREAD_NAME = "NanoHttpd Request Processor (#";
+	
+	protected static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+	
+	protected final Set<ClientHandler> running = ConcurrentHashMap.newKeySet();
+	protected final AtomicLong requestCount = new AtomicLong();
+	protected final boolean virtual;
+	
+	/**
+	 * Creates a runner using virtual threads, if supported.
+	 */
+	public VirtualThreadAsyncRunner() {
+		this(true);
+	}
+	
+	/**
+	 * Creates a runner.
+	 * 
+	 * @param useVirtualThreads If false it will always use platform threads.
+	 */
+	public VirtualThreadAsyncRunner(boolean useVirtualThreads) {
+		this.virtual = useVirtualThreads && isSupported();
+	}
+	
+	/**
+	 * Obtains a virtual thread factory (Thread.ofVirtual().factory()) using
+	 * reflection so it can still be compiled and run on older runtimes.
+	 * 
+	 * @return The virtual thread factory or null if not supported.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "NanoHttpd Virtual Request Processor #", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			Logger.getLogger(VirtualThreadAsyncRunner.class.getName()).log(Level.FINE, "Virtual threads not supported by this runtime", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return True if the current runtime supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+	
+	/**
+	 * @return True if connections are being executed on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	@Override
+	public void closeAll() {
+		// copy of the set for concurrency
+		for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+			clientHandler.close();
+		}
+	}
+
+	@Override
+	public void closed(ClientHandler clientHandler) {
+		this.running.remove(clientHandler);
+	}
+
+	@Override
+	public void exec(ClientHandler clientHandler) {
+		long count = this.requestCount.incrementAndGet();
+		Thread t;
+		if (this.virtual) {
+			t = VIRTUAL_THREAD_FACTORY.newThread(clientHandler);
+		} else {
+			t = new Thread(clientHandler);
+			t.setDaemon(true);
+			t.setName(THREAD_NAME + count + ")");
+		}
+		this.running.add(clientHandler);
+		t.start();
+	}
+	
+	/**
+	 * @return The number of connections currently open.
+	 */
+	public int getOpenConnections() {
+		return this.running.size();
+	}
+	
+	public long getRequestCount() {
+		return this.requestCount.get();
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.metrics;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the acceptor threads: accepted connections, accept failures and
+ * the time taken to hand each accepted connection to the async runner (the
+ * acceptor isn't accepting meanwhile). On Linux the accept queue of the
+ * listening sockets (connections waiting for accept) and the system wide
+ * accept queue overflows can also be read.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class AcceptMetrics {
+	protected final LongAdder accepted = new LongAdder();
+	protected final LongAdder errors = new LongAdder();
+	protected final LatencyHistogram handoff = new LatencyHistogram();
+
+	/**
+	 * Records an accepted connection.
+	 *
+	 * @param start The System.nanoTime() when accept returned.
+	 */
+	public void accepted(long start) {
+		accepted.increment();
+		handoff.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	/**
+	 * Records a failed accept (or hand off).
+	 */
+	public void error() {
+		errors.increment();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * The time (in microseconds) from accept to the connection being handed
+	 * to the async runner.
+	 */
+	public LatencyHistogram getHandoff() {
+		return handoff;
+	}
+
+	/**
+	 * Returns, for each listening socket on port (more than one with
+	 * SO_REUSEPORT), the number of connections waiting to be accepted. Linux
+	 * only.
+	 *
+	 * @param port The listening port.
+	 * @return The queued connections per listening socket (empty if not available).
+	 */
+	public static List<Long> getListenQueues(int port) {
+		List<Long> queues = new ArrayList<Long>();
+		readListenQueues("/proc/net/tcp", port, queues);
+		readListenQueues("/proc/net/tcp6", port, queues);
+		return queues;
+	}
+
+	/**
+	 * The number of times (system wide) a listening socket accept queue was
+	 * full (TcpExt ListenOverflows). Linux only.
+	 *
+	 * @return The count or -1 if not available.
+	 */
+	public static long getListenOverflows() {
+		return readTcpExt("ListenOverflows");
+	}
+
+	/**
+	 * The number of connections (system wide) dropped while listening
+	 * (TcpExt ListenDrops), including overflows. Linux only.
+	 *
+	 * @return The count or -1 if not available.
+	 */
+	public static long getListenDrops() {
+		return readTcpExt("ListenDrops");
+	}
+
+	protected static void readListenQueues(String file, int port, List<Long> queues) {
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line = in.readLine(); // header
+			while ((line = in.readLine()) != null) {
+				// sl local_address rem_address st tx_queue:rx_queue ...
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 5 || !"0A".equals(fields[3])) continue;
+				String local = fields[1];
+				if (Integer.parseInt(local.substring(local.indexOf(':') + 1), 16) != port) continue;
+				// tx_queue:rx_queue, for a listening socket rx is the accept queue
+				String queue = fields[4];
+				queues.add(Long.parseLong(queue.substring(queue.indexOf(':') + 1), 16));
+			}
+		} catch (IOException | RuntimeException e) {
+			// not available
+		}
+	}
+
+	protected static long readTcpExt(String name) {
+		try (BufferedReader in = new BufferedReader(new FileReader("/proc/net/netstat"))) {
+			String names;
+			while ((names = in.readLine()) != null) {
+				String values = in.readLine();
+				if (values == null || !names.startsWith("TcpExt:")) continue;
+				String[] n = names.split(" "), v = values.split(" ");
+				for (int i = 1; i < n.length && i < v.length; i++) {
+					if (n[i].equals(name)) return Long.parseLong(v[i]);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// not available
+		}
+		return -1;
+	}
+}
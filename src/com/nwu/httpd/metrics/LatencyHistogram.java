@@ -0,0 +1,128 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies (in microseconds) using log-linear buckets
+ * (like HdrHistogram): each power of two range is split in 8 linear sub-buckets
+ * so any recorded value is reported with, at most, 12.5% of error. Values up
+ * to ~2^40 microseconds (~12 days) are tracked, bigger ones are kept on the
+ * last bucket.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class LatencyHistogram {
+	protected static final int SUB_BUCKET_BITS = 4;
+	protected static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+	protected static final long MAX_VALUE = (1L << 40) - 1;
+	protected static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	protected final LongAdder count = new LongAdder();
+	protected final LongAdder sum = new LongAdder();
+	protected final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the bucket for a given value.
+	 */
+	protected static int index(long value) {
+		if (value < (1 << SUB_BUCKET_BITS)) return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+		return exp * SUB_BUCKET_HALF + (int) (value >>> exp);
+	}
+
+	/**
+	 * Returns the highest value that falls on a given bucket.
+	 */
+	protected static long highestValue(int index) {
+		if (index < (1 << SUB_BUCKET_BITS)) return index;
+		int exp = index / SUB_BUCKET_HALF - 1;
+		long sub = index - exp * SUB_BUCKET_HALF;
+		return ((sub + 1) << exp) - 1;
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param micros The latency in microseconds.
+	 */
+	public void record(long micros) {
+		if (micros < 0) micros = 0;
+		if (micros > MAX_VALUE) micros = MAX_VALUE;
+
+		counts.incrementAndGet(index(micros));
+		count.increment();
+		sum.add(micros);
+
+		long current = max.get();
+		while (micros > current && !max.compareAndSet(current, micros)) current = max.get();
+	}
+
+	/**
+	 * Returns the number of recorded latencies.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the maximum recorded latency (in microseconds).
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded latencies (in microseconds).
+	 */
+	public double getMean() {
+		long c = count.sum();
+		return (c == 0) ? 0 : (double) sum.sum() / c;
+	}
+
+	/**
+	 * Returns the latency (in microseconds) below which the given percentage
+	 * of the recorded latencies fall.
+	 *
+	 * @param percentile The percentile (e.g. 99.9).
+	 * @return The latency (the highest value of the corresponding bucket).
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) return 0;
+
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long acc = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			acc += snapshot[i];
+			if (acc >= target) return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.LongSupplier;
+
+import com.nwu.httpd.NanoHTTPD.ChannelTransferable;
+
+/**
+ * Wraps the data of a response counting the bytes read and recording the
+ * request on RouteMetrics once closed (NanoHTTPD closes the data after sending
+ * the response). Data sent with transferToChannel is counted as well.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class MeteredInputStream extends FilterInputStream implements ChannelTransferable {
+	protected final RouteMetrics metrics;
+	protected final int status;
+	protected final long startNanos;
+	protected final LongSupplier bytesIn;
+	protected long bytesOut = 0;
+	protected boolean recorded = false;
+
+	public MeteredInputStream(InputStream in, RouteMetrics metrics, int status, long startNanos, long bytesIn) {
+		this(in, metrics, status, startNanos, () -> bytesIn);
+	}
+
+	/**
+	 * @param bytesIn Obtains the request body bytes when the request is
+	 * recorded (e.g. the bytes read from a streamed body).
+	 */
+	public MeteredInputStream(InputStream in, RouteMetrics metrics, int status, long startNanos, LongSupplier bytesIn) {
+		super(in);
+		this.metrics = metrics;
+		this.status = status;
+		this.startNanos = startNanos;
+		this.bytesIn = bytesIn;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) bytesOut++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int r = super.read(b, off, len);
+		if (r > 0) bytesOut += r;
+		return r;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long r = super.skip(n);
+		if (r > 0) bytesOut += r;
+		return r;
+	}
+
+	@Override
+	public boolean isTransferable() {
+		return (in instanceof ChannelTransferable) && ((ChannelTransferable) in).isTransferable();
+	}
+
+	@Override
+	public long transferToChannel(WritableByteChannel target, long count) throws IOException {
+		long r = ((ChannelTransferable) in).transferToChannel(target, count);
+		if (r > 0) bytesOut += r;
+		return r;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (in != null) super.close();
+		} finally {
+			if (!recorded) {
+				recorded = true;
+				metrics.record(status, System.nanoTime() - startNanos, bytesIn.getAsLong(), bytesOut);
+			}
+		}
+	}
+}
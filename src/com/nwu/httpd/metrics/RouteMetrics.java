@@ -0,0 +1,144 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.nwu.httpd.NanoHTTPD;
+
+/**
+ * Lock-free metrics of a registered URI: hits, completed requests, status
+ * codes, bytes received/sent and a latency histogram. Counters are striped
+ * (LongAdder) so concurrent requests don't contend on the same variable.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class RouteMetrics {
+	protected static final int MIN_STATUS = 100;
+	protected static final int MAX_STATUS = 599;
+
+	protected final LongAdder hits = new LongAdder();
+	protected final LongAdder requests = new LongAdder();
+	protected final LongAdder bytesIn = new LongAdder();
+	protected final LongAdder bytesOut = new LongAdder();
+	protected final AtomicReferenceArray<LongAdder> statusCounts = new AtomicReferenceArray<LongAdder>(MAX_STATUS - MIN_STATUS + 1);
+	protected final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Counts a request routed to this URI.
+	 */
+	public void hit() {
+		hits.increment();
+	}
+
+	/**
+	 * Records a completed request.
+	 *
+	 * @param status The response status code.
+	 * @param nanos The time taken from routing to the end of the response (in nanoseconds).
+	 * @param in The request body bytes.
+	 * @param out The response body bytes.
+	 */
+	public void record(int status, long nanos, long in, long out) {
+		requests.increment();
+		if (in > 0) bytesIn.add(in);
+		if (out > 0) bytesOut.add(out);
+		latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+
+		if (status >= MIN_STATUS && status <= MAX_STATUS) {
+			int i = status - MIN_STATUS;
+			LongAdder counter = statusCounts.get(i);
+			if (counter == null) {
+				statusCounts.compareAndSet(i, null, new LongAdder());
+				counter = statusCounts.get(i);
+			}
+			counter.increment();
+		}
+	}
+
+	/**
+	 * Records the request when the response has been sent (i.e. when the response
+	 * data is closed) counting the bytes of the response data.
+	 *
+	 * @param response The response to track.
+	 * @param startNanos The System.nanoTime() when the request was routed.
+	 * @param in The request body bytes.
+	 * @return The same response.
+	 */
+	public NanoHTTPD.Response track(NanoHTTPD.Response response, long startNanos, long in) {
+		return track(response, startNanos, () -> in);
+	}
+
+	/**
+	 * Records the request when the response has been sent counting the bytes
+	 * of the response data and, at that time, the request body bytes.
+	 *
+	 * @param response The response to track.
+	 * @param startNanos The System.nanoTime() when the request was routed.
+	 * @param in Obtains the request body bytes (e.g. read so far).
+	 * @return The same response.
+	 */
+	public NanoHTTPD.Response track(NanoHTTPD.Response response, long startNanos, LongSupplier in) {
+		if (response != null) {
+			int status = (response.getStatus() != null) ? response.getStatus().getRequestStatus() : 0;
+			response.setData(new MeteredInputStream(response.getData(), this, status, startNanos, in));
+		}
+		return response;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns a snapshot of the number of responses per status code.
+	 *
+	 * @return Map of status code to count.
+	 */
+	public Map<Integer, Long> getStatusCounts() {
+		Map<Integer, Long> res = new TreeMap<Integer, Long>();
+		for (int i = 0; i < statusCounts.length(); i++) {
+			LongAdder counter = statusCounts.get(i);
+			if (counter != null) res.put(i + MIN_STATUS, counter.sum());
+		}
+		return res;
+	}
+}
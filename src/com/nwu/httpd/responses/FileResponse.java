@@ -18,22 +18,41 @@
  */
 package com.nwu.httpd.responses;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 
 import com.nwu.httpd.Codes;
+import com.nwu.httpd.FileCache;
 import com.nwu.httpd.HTTPd;
 import com.nwu.httpd.IHTTPd;
 import com.nwu.httpd.Request;
+import com.nwu.httpd.Request.MethodType;
+import com.nwu.httpd.Validator;
+import com.nwu.httpd.NanoHTTPD.ByteBufferInputStream;
+import com.nwu.httpd.NanoHTTPD.ChainedInputStream;
+import com.nwu.httpd.NanoHTTPD.Response.IStatus;
 import com.nwu.log.Log.Type;
 
 public class FileResponse extends Response {
+	/**
+	 * Maximum number of ranges of a request (more are answered with the whole
+	 * file).
+	 */
+	public static final int MAX_RANGES = 16;
+
 	protected String fileLocation = ".";
+	protected boolean useFileCache = true;
 	
 	public String getFileLocation() {
 		return fileLocation;
@@ -75,19 +94,24 @@ public class FileResponse extends Response {
 
 	/**
 	 * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-	 * ignores all headers and HTTP parameters.
+	 * ignores all headers and HTTP parameters. Files already resolved for the
+	 * same URI are answered from the httpd FileCache (if enabled).
 	 */
 	public com.nwu.httpd.responses.Response serveFile(String uri,
 			Map<String, String> header, File homeDir, boolean allowDirectoryListing) {
+		return serveFile(uri, MethodType.GET, header, homeDir, allowDirectoryListing);
+	}
+
+	/**
+	 * Serves file from homeDir and its' subdirectories (only) to a request
+	 * with the given method (only GET and HEAD are answered with 304 Not
+	 * Modified).
+	 */
+	public com.nwu.httpd.responses.Response serveFile(String uri, MethodType method,
+			Map<String, String> header, File homeDir, boolean allowDirectoryListing) {
 		
 		uri = uri.replaceFirst(this.rURI, "");
 		
-		// Make sure we won't die of an exception later
-		if (!homeDir.isDirectory())
-			return new com.nwu.httpd.responses.SimpleResponse(httpd,
-					Codes.HTTP_INTERNALERROR, Codes.MIME_PLAINTEXT,
-					"INTERNAL ERRROR: serveFile(): given homeDir is not a directory.");
-
 		// Remove URL arguments
 		uri = uri.trim().replace(File.separatorChar, '/');
 		if (uri.indexOf('?') >= 0)
@@ -100,6 +124,27 @@ public class FileResponse extends Response {
 					Codes.HTTP_FORBIDDEN, Codes.MIME_PLAINTEXT,
 					"FORBIDDEN: Won't serve ../ for security reasons.");
 
+		// Hot files are served without touching the filesystem
+		FileCache fileCache = useFileCache ? httpd.getFileCache() : null;
+		String cacheKey = null;
+		if (fileCache != null) {
+			cacheKey = homeDir.getPath() + File.pathSeparatorChar + uri;
+			FileCache.CachedFile cached = fileCache.get(cacheKey);
+			if (cached != null) {
+				try {
+					return fileResponse(cached, method, header);
+				} catch (IOException ioe) {
+					fileCache.invalidate(cacheKey);
+				}
+			}
+		}
+
+		// Make sure we won't die of an exception later
+		if (!homeDir.isDirectory())
+			return new com.nwu.httpd.responses.SimpleResponse(httpd,
+					Codes.HTTP_INTERNALERROR, Codes.MIME_PLAINTEXT,
+					"INTERNAL ERRROR: serveFile(): given homeDir is not a directory.");
+
 		File f = new File(homeDir, uri);
 		if (!f.exists())
 			return new com.nwu.httpd.responses.SimpleResponse(httpd,
@@ -185,37 +230,20 @@ public class FileResponse extends Response {
 		try {
 			// Get MIME type from file name extension, if possible
 			String mime = null;
-			int dot = f.getCanonicalPath().lastIndexOf('.');
+			String path = f.getCanonicalPath();
+			int dot = path.lastIndexOf('.');
 			if (dot >= 0)
-				mime = (String) Codes.theMimeTypes.get(f.getCanonicalPath()
+				mime = (String) Codes.theMimeTypes.get(path
 						.substring(dot + 1).toLowerCase());
 			if (mime == null)
 				mime = Codes.MIME_DEFAULT_BINARY;
 
-			// Support (simple) skipping:
-			long startFrom = 0;
-			String range = header.get("range");
-			if (range != null) {
-				if (range.startsWith("bytes=")) {
-					range = range.substring("bytes=".length());
-					int minus = range.indexOf('-');
-					if (minus > 0)
-						range = range.substring(0, minus);
-					try {
-						startFrom = Long.parseLong(range);
-					} catch (NumberFormatException nfe) {
-					}
-				}
-			}
-
-			FileInputStream fis = new FileInputStream(f);
-			fis.skip(startFrom);
-			com.nwu.httpd.responses.Response r = new com.nwu.httpd.responses.SimpleResponse(
-					httpd, Codes.HTTP_OK, mime, fis);
-			r.addHeader("Content-length", "" + (f.length() - startFrom));
-			r.addHeader("Content-range", "" + startFrom + "-"
-					+ (f.length() - 1) + "/" + f.length());
-			return r;
+			FileCache.CachedFile file = null;
+			if (fileCache != null && f.isFile())
+				file = fileCache.put(cacheKey, f, mime, httpd.useGzipWhenAccepted(mime));
+			if (file == null)
+				file = FileCache.describe(f, mime);
+			return fileResponse(file, method, header);
 		} catch (IOException ioe) {
 			return new com.nwu.httpd.responses.SimpleResponse(httpd,
 					Codes.HTTP_FORBIDDEN, Codes.MIME_PLAINTEXT,
@@ -223,6 +251,166 @@ public class FileResponse extends Response {
 		}
 	}
 
+	/**
+	 * Parses the "range" header of a file request (RFC 7233). Returns null if
+	 * the whole file should be sent (no range, an invalid one or an If-Range 
+	 * that no longer matches), an empty list if no range can be satisfied or
+	 * the sorted and coalesced {first, last} byte positions.
+	 */
+	protected List<long[]> getRanges(Map<String, String> header, long length, Validator validator) {
+		String range = header.get("range");
+		if (range == null) return null;
+		range = range.trim();
+		if (!range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+		String ifRange = header.get("if-range");
+		if (ifRange != null && !ifRangeMatches(ifRange.trim(), validator)) return null;
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		int count = 0;
+		for (String spec : range.substring(6).split(",")) {
+			spec = spec.trim();
+			if (spec.isEmpty()) continue;
+			if (++count > MAX_RANGES) return null;
+
+			int minus = spec.indexOf('-');
+			if (minus < 0) return null;
+			long first, last;
+			try {
+				if (minus == 0) {
+					// Suffix range: the last N bytes
+					long suffix = Long.parseLong(spec.substring(1).trim());
+					if (suffix < 0) return null;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+					if (suffix == 0 || length == 0) continue;
+				} else {
+					first = Long.parseLong(spec.substring(0, minus).trim());
+					String end = spec.substring(minus + 1).trim();
+					last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+					if (first < 0 || last < first) return null;
+					if (first >= length) continue;
+					last = Math.min(last, length - 1);
+				}
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+			ranges.add(new long[] { first, last });
+		}
+		if (count == 0) return null;
+
+		// Overlapping or adjacent ranges are sent once
+		Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+		List<long[]> coalesced = new ArrayList<long[]>(ranges.size());
+		for (long[] r : ranges) {
+			long[] previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+			if (previous != null && r[0] <= previous[1] + 1) {
+				previous[1] = Math.max(previous[1], r[1]);
+			} else {
+				coalesced.add(r);
+			}
+		}
+		return coalesced;
+	}
+
+	/**
+	 * Checks an If-Range validator: an entity tag (strong comparison) or the
+	 * file modification time.
+	 */
+	protected boolean ifRangeMatches(String ifRange, Validator validator) {
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) return validator.matches(ifRange, true);
+		long date = Validator.parseDate(ifRange);
+		return date >= 0 && date == (validator.getLastModified() / 1000) * 1000;
+	}
+
+	protected boolean acceptsGzip(Map<String, String> header) {
+		String acceptEncoding = header.get("accept-encoding");
+		return acceptEncoding != null && acceptEncoding.contains("gzip");
+	}
+
+	/**
+	 * Builds the response of a (cached or described) file: 304 if the client
+	 * has the current version (GET and HEAD only), the whole file, using the
+	 * precompressed gzip variant if the client accepts it, or the requested
+	 * ranges (206 or 416). The gzip encoding (precompressed or compressed
+	 * when sent) has its own entity tag.
+	 */
+	protected com.nwu.httpd.responses.Response fileResponse(FileCache.CachedFile file, MethodType method, Map<String, String> header) throws IOException {
+		long length = file.getLength();
+		boolean gzip = acceptsGzip(header) && (file.hasGzip() || httpd.useGzipWhenAccepted(file.getMimeType()));
+		Validator validator = !gzip ? file.getValidator() : file.hasGzip() ? file.getGzipValidator() : file.getValidator().withSuffix("gz");
+		com.nwu.httpd.responses.Response r;
+
+		if ((method == MethodType.GET || method == MethodType.HEAD) && validator.isNotModified(header)) {
+			r = fileResponse(Codes.HTTP_NOTMODIFIED, null, null, 0);
+			addValidatorHeaders(r, file, validator);
+			return r;
+		}
+
+		List<long[]> ranges = getRanges(header, length, file.getValidator());
+		if (ranges == null) {
+			// without a precompressed variant the server compresses it when sent
+			if (gzip && file.hasGzip()) {
+				r = fileResponse(Codes.HTTP_OK, file.getMimeType(), file.newGzipInputStream(), file.getGzipLength());
+				r.addHeader("Content-Encoding", "gzip");
+			} else {
+				r = fileResponse(Codes.HTTP_OK, file.getMimeType(), file.newInputStream(0), length);
+			}
+		} else if (ranges.isEmpty()) {
+			r = fileResponse(Codes.HTTP_RANGENOTSATISFIABLE, Codes.MIME_PLAINTEXT, new ByteArrayInputStream(new byte[0]), 0);
+			r.addHeader("Content-Range", "bytes */" + length);
+		} else if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			r = fileResponse(Codes.HTTP_PARTIALCONTENT, file.getMimeType(), file.newInputStream(range[0], range[1] - range[0] + 1), range[1] - range[0] + 1);
+			r.addHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+		} else {
+			r = multipartResponse(file, ranges);
+		}
+
+		r.addHeader("Accept-Ranges", "bytes");
+		addValidatorHeaders(r, file, (ranges == null) ? validator : file.getValidator());
+		return r;
+	}
+
+	protected void addValidatorHeaders(com.nwu.httpd.responses.Response r, FileCache.CachedFile file, Validator validator) {
+		r.addHeader("ETag", validator.getETag());
+		r.addHeader("Last-Modified", Validator.formatDate(validator.getLastModified()));
+		if (file.hasGzip() || httpd.useGzipWhenAccepted(file.getMimeType())) r.addHeader("Vary", "Accept-Encoding");
+	}
+
+	/**
+	 * Builds a multipart/byteranges response. Each part is read with 
+	 * positional reads (or transferred) straight from the file.
+	 */
+	protected com.nwu.httpd.responses.Response multipartResponse(FileCache.CachedFile file, List<long[]> ranges) throws IOException {
+		String boundary = "NWU_BYTERANGES_" + Long.toHexString(System.nanoTime());
+		List<InputStream> parts = new ArrayList<InputStream>(ranges.size() * 2 + 1);
+		long size = 0;
+
+		for (long[] range : ranges) {
+			byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + file.getMimeType() +
+					"\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + file.getLength() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			parts.add(new ByteBufferInputStream(ByteBuffer.wrap(partHeader)));
+			parts.add(file.newInputStream(range[0], range[1] - range[0] + 1));
+			size += partHeader.length + range[1] - range[0] + 1;
+		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		parts.add(new ByteBufferInputStream(ByteBuffer.wrap(end)));
+		size += end.length;
+
+		return fileResponse(Codes.HTTP_PARTIALCONTENT, "multipart/byteranges; boundary=" + boundary, new ChainedInputStream(parts), size);
+	}
+
+	/**
+	 * Builds a fixed length response.
+	 */
+	protected com.nwu.httpd.responses.Response fileResponse(IStatus status, String mime, InputStream data, long size) {
+		com.nwu.httpd.responses.Response r = new com.nwu.httpd.responses.SimpleResponse(
+				httpd, status, mime, data);
+		r.size = size;
+		return r;
+	}
+
 	/**
 	 * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
 	 * instead of '+'.
@@ -254,13 +442,15 @@ public class FileResponse extends Response {
 		
 		if (props.containsKey("publichtml")) fileLocation = props.get("publichtml");
 		log.log(Type.DEBUG, "publichtml = " + fileLocation);
+		if (props.containsKey("filecache")) useFileCache = !"false".equalsIgnoreCase(props.get("filecache"));
 
-		Response r = serveFile(uri, request.getHeader(), new File(fileLocation), true);
+		Response r = serveFile(uri, request.getMethod(), request.getHeader(), new File(fileLocation), true);
 		
 		this.status = r.status;
 		this.mimeType = r.mimeType;
 		this.header = r.header;
 		this.data = r.data;
+		this.size = r.size;
 	}
 
 
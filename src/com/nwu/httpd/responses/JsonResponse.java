@@ -50,6 +50,22 @@ public class JsonResponse extends Response {
 
 	@Override
 	public void execute(Request request) {
+		mimeType = Codes.MIME_JSON;
+		status = Codes.HTTP_OK;
+		byte[] json = answer(request).getBytes();
+		// fixed length so a small answer goes out with the headers
+		data = new ByteArrayInputStream(json);
+		size = json.length;
+	}
+	
+	/**
+	 * Looks up the answer for the request parameters (doesn't change any
+	 * instance field).
+	 * 
+	 * @param request The request.
+	 * @return The JSON answer or an empty string if none was found.
+	 */
+	protected String answer(Request request) {
 		StringBuffer out = new StringBuffer();
 		
 		//out.append(res.toString());
@@ -63,9 +79,7 @@ public class JsonResponse extends Response {
 			}
 		}
 		
-		mimeType = Codes.MIME_JSON;
-		status = Codes.HTTP_OK;
-		data = new ByteArrayInputStream( out.toString().getBytes());
+		return out.toString();
 	}
 	
 	public void add(String operationKey, String key, JsonAnswer answer) {
@@ -27,6 +27,7 @@ import com.nwu.httpd.HTTPd;
 import com.nwu.httpd.IHTTPd;
 import com.nwu.httpd.NanoHTTPD.Response.IStatus;
 import com.nwu.httpd.Request;
+import com.nwu.httpd.Validator;
 import com.nwu.log.Log;
 
 /**
@@ -56,6 +57,59 @@ public abstract class Response {
 	
 	public abstract void execute(Request request);
 	
+	/**
+	 * Answers a request returning the NanoHTTPD response. By default calls
+	 * execute(Request) and getResponse(). Responses implementing 
+	 * StatelessResponse should override this to build the answer without
+	 * changing the instance fields.
+	 * 
+	 * @param request The request.
+	 * @return The NanoHTTPD response.
+	 */
+	public com.nwu.httpd.NanoHTTPD.Response serve(Request request) {
+		execute(request);
+		return getResponse();
+	}
+	
+	/**
+	 * Returns the validator (ETag and/or Last-Modified) of the resource a
+	 * request is for. Override to support conditional requests: it's called
+	 * before serve(Request) and, if the request If-None-Match or
+	 * If-Modified-Since show the client already has it, a 304 Not Modified is
+	 * answered without producing the body. Otherwise the validator headers
+	 * are added to the response. By default there's no validator.
+	 * 
+	 * @param request The request.
+	 * @return The validator or null.
+	 */
+	public Validator getValidator(Request request) {
+		return null;
+	}
+	
+	/**
+	 * Clears the answer of the previous request so this instance can be 
+	 * reused for another request (see ResponseFactory).
+	 */
+	public void recycle() {
+		this.status = null;
+		this.mimeType = null;
+		this.data = null;
+		this.size = -1;
+		this.header.clear();
+	}
+	
+	/**
+	 * Builds a fixed length NanoHTTPD response.
+	 * 
+	 * @param status The HTTP status.
+	 * @param mimeType The content mime type.
+	 * @param body The content.
+	 * @return The NanoHTTPD response.
+	 */
+	protected static com.nwu.httpd.NanoHTTPD.Response newResponse(IStatus status, String mimeType, byte[] body) {
+		return com.nwu.httpd.NanoHTTPD.newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(body), body.length);
+	}
+	
 	/**
 	 * Register a Response class. This should be overridden and implemented
 	 * by subclasses.
@@ -158,6 +212,10 @@ public abstract class Response {
 	public Map<String, String> getHeader() {
 		return header;
 	}
+	
+	public Map<String, String> getProps() {
+		return props;
+	}
 
 	public InputStream getData() {
 		return data;
@@ -20,6 +20,7 @@ package com.nwu.httpd.responses;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
+import java.io.InputStream;
 
 import com.nwu.httpd.IHTTPd;
 import com.nwu.httpd.NanoHTTPD.Response.IStatus;
@@ -37,6 +38,11 @@ public class SimpleResponse extends Response {
 		super(httpd, httpOk, mime, fis);
 	}
 
+	public SimpleResponse(IHTTPd httpd, IStatus status, String mimeType,
+			InputStream data) {
+		super(httpd, status, mimeType, data);
+	}
+
 	@Override
 	public void execute(Request request) {
 
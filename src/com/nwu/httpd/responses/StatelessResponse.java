@@ -0,0 +1,35 @@
+/**       
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.responses;
+
+/**
+ * Marks a com.nwu.httpd.responses.Response sub-class as stateless. Only one 
+ * instance will be created, when registered, and shared by all requests
+ * (concurrently).
+ * 
+ * Since execute(Request) keeps the answer on the instance fields, stateless 
+ * responses must override serve(Request) and build the answer locally 
+ * (otherwise they won't be shared).
+ * 
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ * @see com.nwu.httpd.ResponseFactory
+ */
+public interface StatelessResponse {
+
+}
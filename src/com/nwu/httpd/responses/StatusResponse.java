@@ -19,11 +19,28 @@
 package com.nwu.httpd.responses;
 
 import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Map;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.nwu.httpd.BoundedAsyncRunner;
+import com.nwu.httpd.Codes;
+import com.nwu.httpd.ConnectionManager;
 import com.nwu.httpd.IHTTPd;
+import com.nwu.httpd.NanoHTTPD.ListenerOptions;
+import com.nwu.httpd.NanoHTTPD.AsyncRunner;
+import com.nwu.httpd.NanoHTTPD.DefaultAsyncRunner;
+import com.nwu.httpd.Request;
+import com.nwu.httpd.FileCache;
+import com.nwu.httpd.ResponseCache;
+import com.nwu.httpd.VirtualThreadAsyncRunner;
+import com.nwu.httpd.metrics.AcceptMetrics;
+import com.nwu.httpd.metrics.LatencyHistogram;
+import com.nwu.httpd.metrics.RouteMetrics;
+import com.nwu.util.BufferPool;
+import com.nwu.util.SimpleCache;
 
 /**
  * Status response.
@@ -36,12 +53,19 @@ import com.nwu.httpd.IHTTPd;
  * <ul>
  *  <li>TCP port - The current assigned TCP port.</li>
  *  <li>URI responses number - The current number of assigned URI responses registered.<li>
+ *  <li>Workers - The current state of the requests execution strategy (q=workers).<li>
+ *  <li>Route metrics - Hits, status codes, bytes and latency percentiles (in microseconds) per URI (q=routemetrics).<li>
+ *  <li>Response cache - Hit ratio, size and evictions of the response cache (q=responsecache).<li>
+ *  <li>File cache - Hit ratio, size and evictions of the static file cache (q=filecache).<li>
+ *  <li>Buffer pool - Pooled, outstanding, reused and allocated buffers per size class (q=bufferpool).<li>
+ *  <li>Listener - Acceptor threads, accepted connections, accept errors, hand off latency and accept queues (q=listener).<li>
+ *  <li>Connections - Open and idle connections, limits, timeouts, rejected, evicted and timed out connections (q=connections).<li>
  * </ul>
  * 
  * @author Nuno Aguiar <nuno@aguiar.name>
  *
  */
-public class StatusResponse extends JsonResponse {
+public class StatusResponse extends JsonResponse implements StatelessResponse {
 	//public static final String URI = "/Status";
 	StringBuffer out;
 	
@@ -126,6 +150,172 @@ public class StatusResponse extends JsonResponse {
 		return props1;
 	}
 	
+	protected JSONObject respond2RouteMetrics(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			for (Map.Entry<String, RouteMetrics> entry : this.httpd.getURImetrics().entrySet()) {
+				RouteMetrics metrics = entry.getValue();
+				LatencyHistogram latency = metrics.getLatency();
+				
+				JSONObject route = new JSONObject();
+				route.put("Hits", metrics.getHits());
+				route.put("Requests", metrics.getRequests());
+				route.put("Bytes in", metrics.getBytesIn());
+				route.put("Bytes out", metrics.getBytesOut());
+				JSONObject status = new JSONObject();
+				for (Map.Entry<Integer, Long> count : metrics.getStatusCounts().entrySet()) {
+					status.put(String.valueOf(count.getKey()), count.getValue());
+				}
+				route.put("Status", status);
+				
+				JSONObject lat = new JSONObject();
+				lat.put("Mean", latency.getMean());
+				lat.put("P50", latency.getValueAtPercentile(50));
+				lat.put("P90", latency.getValueAtPercentile(90));
+				lat.put("P99", latency.getValueAtPercentile(99));
+				lat.put("P99.9", latency.getValueAtPercentile(99.9));
+				lat.put("Max", latency.getMax());
+				route.put("Latency", lat);
+				
+				props1.put(entry.getKey(), route);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject respond2ResponseCache(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			ResponseCache responseCache = this.httpd.getResponseCache();
+			if (responseCache != null) {
+				SimpleCache cache = responseCache.getCache();
+				props1.put("Entries", cache.getNumberOfCurrentCachedObjects());
+				props1.put("Bytes", cache.getWeight());
+				props1.put("Maximum bytes", cache.getConfig().getMaxWeight());
+				props1.put("Hits", cache.getHitCount());
+				props1.put("Misses", cache.getMissCount());
+				props1.put("Hit ratio", cache.getHitRatio());
+				props1.put("Evictions", cache.getEvictionCount());
+				props1.put("Expirations", cache.getExpirationCount());
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject respond2FileCache(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			FileCache fileCache = this.httpd.getFileCache();
+			if (fileCache != null) {
+				SimpleCache cache = fileCache.getCache();
+				props1.put("Entries", cache.getNumberOfCurrentCachedObjects());
+				props1.put("Bytes", cache.getWeight());
+				props1.put("Maximum bytes", cache.getConfig().getMaxWeight());
+				props1.put("Hits", cache.getHitCount());
+				props1.put("Misses", cache.getMissCount());
+				props1.put("Hit ratio", cache.getHitRatio());
+				props1.put("Evictions", cache.getEvictionCount());
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject respond2BufferPool(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			BufferPool pool = BufferPool.getDefault();
+			props1.put("Direct", pool.isDirect());
+			props1.put("Debug", pool.isDebug());
+			props1.put("Arrays", sizeClasses(pool.getArrayClasses()));
+			props1.put("Buffers", sizeClasses(pool.getBufferClasses()));
+			props1.put("Oversized", pool.getOversized());
+			if (pool.isDebug()) {
+				props1.put("Invalid releases", pool.getInvalidReleases());
+				JSONObject leaks = new JSONObject();
+				for (Map.Entry<String, Integer> leak : pool.getLeaks().entrySet()) {
+					leaks.put(leak.getKey(), leak.getValue());
+				}
+				props1.put("Outstanding by site", leaks);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject respond2Listener(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			ListenerOptions options = this.httpd.getListenerOptions();
+			AcceptMetrics metrics = this.httpd.getAcceptMetrics();
+			LatencyHistogram handoff = metrics.getHandoff();
+			
+			props1.put("Acceptors", options.getAcceptors());
+			props1.put("Reuse port", options.isReusePort());
+			props1.put("Backlog", options.getBacklog());
+			props1.put("Accepted", metrics.getAccepted());
+			props1.put("Errors", metrics.getErrors());
+			
+			JSONObject lat = new JSONObject();
+			lat.put("Mean", handoff.getMean());
+			lat.put("P50", handoff.getValueAtPercentile(50));
+			lat.put("P99", handoff.getValueAtPercentile(99));
+			lat.put("Max", handoff.getMax());
+			props1.put("Hand off", lat);
+			
+			props1.put("Accept queues", new JSONArray(AcceptMetrics.getListenQueues(this.httpd.getListeningPort())));
+			props1.put("Listen overflows", AcceptMetrics.getListenOverflows());
+			props1.put("Listen drops", AcceptMetrics.getListenDrops());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject respond2Connections(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			ConnectionManager manager = this.httpd.getConnectionManager();
+			props1.put("Open", manager.getOpenConnections());
+			props1.put("Idle", manager.getIdleConnections());
+			props1.put("Maximum connections", manager.getMaxConnections());
+			props1.put("Maximum requests per connection", manager.getMaxRequests());
+			props1.put("Header timeout", manager.getHeaderTimeout());
+			props1.put("Body timeout", manager.getBodyTimeout());
+			props1.put("Idle timeout", manager.getIdleTimeout());
+			props1.put("Opened", manager.getOpened());
+			props1.put("Rejected", manager.getRejected());
+			props1.put("Evicted", manager.getEvicted());
+			props1.put("Header timeouts", manager.getHeaderTimeouts());
+			props1.put("Body timeouts", manager.getBodyTimeouts());
+			props1.put("Idle timeouts", manager.getIdleTimeouts());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
+	protected JSONObject sizeClasses(List<BufferPool.SizeClass> classes) throws JSONException {
+		JSONObject props1 = new JSONObject();
+		for (BufferPool.SizeClass sizeClass : classes) {
+			JSONObject c = new JSONObject();
+			c.put("Pooled", sizeClass.getPooled());
+			c.put("Maximum pooled", sizeClass.getMaxPooled());
+			c.put("Outstanding", sizeClass.getOutstanding());
+			c.put("Hits", sizeClass.getHits());
+			c.put("Misses", sizeClass.getMisses());
+			c.put("Drops", sizeClass.getDrops());
+			props1.put(String.valueOf(sizeClass.getSize()), c);
+		}
+		return props1;
+	}
+	
 	protected JSONObject respond2Memory(Map<String, String> p) {
 		JSONObject props1 = new JSONObject();
 		try {
@@ -141,6 +331,39 @@ public class StatusResponse extends JsonResponse {
 		return props1;
 	}
 	
+	protected JSONObject respond2Workers(Map<String, String> p) {
+		JSONObject props1 = new JSONObject();
+		try {
+			AsyncRunner runner = this.httpd.getAsyncRunner();
+			props1.put("Runner", (runner == null) ? null : runner.getClass().getName());
+			if (runner instanceof BoundedAsyncRunner) {
+				BoundedAsyncRunner bounded = (BoundedAsyncRunner) runner;
+				props1.put("Policy", bounded.getPolicy().toString());
+				props1.put("Core workers", bounded.getCoreWorkers());
+				props1.put("Maximum workers", bounded.getMaxWorkers());
+				props1.put("Pool size", bounded.getPoolSize());
+				props1.put("Largest pool size", bounded.getLargestPoolSize());
+				props1.put("Active workers", bounded.getActiveWorkers());
+				props1.put("Queue depth", bounded.getQueueDepth());
+				props1.put("Queue capacity", bounded.getQueueCapacity());
+				props1.put("Open connections", bounded.getOpenConnections());
+				props1.put("Connections", bounded.getRequestCount());
+				props1.put("Rejected", bounded.getRejectedCount());
+				props1.put("Shed", bounded.getShedCount());
+			} else if (runner instanceof VirtualThreadAsyncRunner) {
+				VirtualThreadAsyncRunner vrunner = (VirtualThreadAsyncRunner) runner;
+				props1.put("Virtual threads", vrunner.isVirtual());
+				props1.put("Open connections", vrunner.getOpenConnections());
+				props1.put("Connections", vrunner.getRequestCount());
+			} else if (runner instanceof DefaultAsyncRunner) {
+				props1.put("Open connections", ((DefaultAsyncRunner) runner).getRunning().size());
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return props1;
+	}
+	
 	/**
 	 * Creates the status response.
 	 * 
@@ -155,6 +378,18 @@ public class StatusResponse extends JsonResponse {
 		add("q", "listofresponses", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2ListOfResponses(p); } });
 		add("q", "listofresponseshits",	new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2ListOfResponsesHits(p); } });		
     	add("q", "memory", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2Memory(p); } });
+    	add("q", "workers", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2Workers(p); } });
+    	add("q", "routemetrics", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2RouteMetrics(p); } });
+    	add("q", "responsecache", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2ResponseCache(p); } });
+    	add("q", "filecache", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2FileCache(p); } });
+    	add("q", "bufferpool", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2BufferPool(p); } });
+    	add("q", "listener", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2Listener(p); } });
+    	add("q", "connections", new JsonAnswer() { @Override public JSONObject answer(Map<String, String> p) { return respond2Connections(p); } });
+	}
+	
+	@Override
+	public com.nwu.httpd.NanoHTTPD.Response serve(Request request) {
+		return newResponse(Codes.HTTP_OK, Codes.MIME_JSON, answer(request).getBytes());
 	}
 	
 	/**
@@ -0,0 +1,77 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.router;
+
+import java.util.Map;
+
+/**
+ * The result of a successful Router lookup.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ * @param <T> The target type
+ */
+public class RouteMatch<T> {
+	protected final T target;
+	protected final String pattern;
+	protected final Map<String, String> params;
+
+	public RouteMatch(T target, String pattern, Map<String, String> params) {
+		this.target = target;
+		this.pattern = pattern;
+		this.params = params;
+	}
+
+	/**
+	 * The target registered for the matched route.
+	 *
+	 * @return The target.
+	 */
+	public T getTarget() {
+		return target;
+	}
+
+	/**
+	 * The pattern of the matched route (as registered).
+	 *
+	 * @return The route pattern.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * The captured path parameters (the rest of the path, if any, is under "*").
+	 *
+	 * @return The path parameters (empty if none).
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	/**
+	 * Returns a captured path parameter.
+	 *
+	 * @param name The parameter name.
+	 * @return The value or null if not captured.
+	 */
+	public String getParam(String name) {
+		return params.get(name);
+	}
+}
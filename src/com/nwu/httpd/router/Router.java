@@ -0,0 +1,372 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.httpd.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nwu.httpd.NanoHTTPD.Method;
+
+/**
+ * Maps request paths to targets using a radix trie (compressed by common
+ * literal prefixes). A path is resolved in a single pass over its characters
+ * without regular expressions or creating intermediate strings (only the
+ * captured parameter values are created on a successful match).
+ * <br><br>
+ * Patterns always start with "/" and each segment can be:
+ * <ul>
+ *  <li>a literal (e.g. "/users/list")</li>
+ *  <li>a parameter capturing a whole segment (e.g. "/users/{id}/posts")</li>
+ *  <li>a wildcard, only as the last segment, capturing the rest of the path
+ *  under the parameter name "*" (e.g. "/files/*")</li>
+ * </ul>
+ * When several routes match literals win over parameters and parameters win
+ * over wildcards. Like the previous first segment lookup a pattern (other than
+ * "/") also answers its sub-paths (e.g. "/Status" answers "/Status/abc") when
+ * no route matches the whole path; the unmatched rest is provided as "*".
+ * <br><br>
+ * Routes can be registered for all methods (method = null) or for a specific
+ * method (HEAD falls back to GET). Adding routes rebuilds the trie which is then
+ * published for the next lookups so matching never needs locks.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ * @param <T> The target type (e.g. the handler of a route)
+ */
+public class Router<T> {
+	public static final String WILDCARD = "*";
+
+	protected final List<Route<T>> routes = new ArrayList<Route<T>>();
+	protected volatile Node root = new Node();
+
+	/**
+	 * Adds a route replacing any previous route for the same pattern and method.
+	 *
+	 * @param method The method (or null for any method)
+	 * @param pattern The path pattern.
+	 * @param target The target to return on match.
+	 * @throws IllegalArgumentException If the pattern is invalid or conflicts
+	 * with the existing routes (e.g. different parameter names on the same
+	 * position).
+	 */
+	public synchronized void add(Method method, String pattern, T target) {
+		List<Route<T>> newRoutes = new ArrayList<Route<T>>(routes.size() + 1);
+		for (Route<T> route : routes) {
+			if (!(route.pattern.equals(pattern) && route.method == method)) newRoutes.add(route);
+		}
+		newRoutes.add(new Route<T>(method, pattern, target));
+
+		Node newRoot = new Node();
+		int max = 0;
+		for (Route<T> route : newRoutes) {
+			max = Math.max(max, insert(newRoot, route));
+		}
+
+		routes.clear();
+		routes.addAll(newRoutes);
+		newRoot.maxParams = max;
+		root = newRoot;
+	}
+
+	/**
+	 * Removes all routes for a given pattern.
+	 *
+	 * @param pattern The path pattern.
+	 */
+	public synchronized void remove(String pattern) {
+		Node newRoot = new Node();
+		int max = 0;
+		for (int i = routes.size() - 1; i >= 0; i--) {
+			if (routes.get(i).pattern.equals(pattern)) routes.remove(i);
+		}
+		for (Route<T> route : routes) {
+			max = Math.max(max, insert(newRoot, route));
+		}
+		newRoot.maxParams = max;
+		root = newRoot;
+	}
+
+	/**
+	 * Returns the number of registered routes.
+	 *
+	 * @return The number of routes.
+	 */
+	public synchronized int size() {
+		return routes.size();
+	}
+
+	/**
+	 * Finds the route for a given method and path.
+	 *
+	 * @param method The request method.
+	 * @param path The request path (without the query string).
+	 * @return The match or null if no route matches.
+	 */
+	public RouteMatch<T> match(Method method, String path) {
+		if (path == null || path.length() == 0 || path.charAt(0) != '/') return null;
+
+		Node r = root;
+		int max = r.maxParams;
+		int[] caps = (max > 0) ? new int[max * 2] : null;
+		String[] names = (max > 0) ? new String[max] : null;
+		Match m = new Match(method, path, caps, names);
+		if (!match(r, 0, 0, m)) {
+			// No exact match, try again accepting sub-paths
+			m.subPaths = true;
+			if (!match(r, 0, 0, m)) return null;
+		}
+
+		Map<String, String> params;
+		if (m.ncaps == 0) {
+			params = Collections.emptyMap();
+		} else {
+			params = new LinkedHashMap<String, String>(m.ncaps * 2);
+			for (int i = 0; i < m.ncaps; i++) {
+				params.put(names[i], path.substring(caps[i * 2], caps[i * 2 + 1]));
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		T target = (T) m.target;
+		return new RouteMatch<T>(target, m.pattern, params);
+	}
+
+	/**
+	 * Matches the rest of the path from pos given that the node label was
+	 * already matched.
+	 */
+	protected boolean match(Node node, int pos, int ncaps, Match m) {
+		String path = m.path;
+		int len = path.length();
+
+		if (pos == len) {
+			Object t = node.target(m.method);
+			if (t != null) return m.found(t, node.pattern, ncaps);
+			if (node.wildcard != null && (t = node.wildcard.target(m.method)) != null) {
+				return m.found(t, node.wildcard.pattern, capture(m, ncaps, WILDCARD, pos, len));
+			}
+			return false;
+		}
+
+		char c = path.charAt(pos);
+
+		// Literals
+		char[] indices = node.indices;
+		for (int i = 0; i < indices.length; i++) {
+			if (indices[i] == c) {
+				Node child = node.children[i];
+				char[] label = child.label;
+				int end = pos + label.length;
+				if (end <= len) {
+					int j = 1;
+					while (j < label.length && path.charAt(pos + j) == label[j]) j++;
+					if (j == label.length && match(child, end, ncaps, m)) return true;
+				}
+				break;
+			}
+		}
+
+		// Parameter
+		if (node.param != null && c != '/') {
+			int end = path.indexOf('/', pos);
+			if (end < 0) end = len;
+			if (match(node.param, end, capture(m, ncaps, node.param.paramName, pos, end), m)) return true;
+		}
+
+		// Wildcard
+		if (node.wildcard != null) {
+			Object t = node.wildcard.target(m.method);
+			if (t != null) return m.found(t, node.wildcard.pattern, capture(m, ncaps, WILDCARD, pos, len));
+		}
+
+		// Sub-path of the node pattern
+		if (m.subPaths && node.pattern != null && node.pattern.length() > 1 && (c == '/' || path.charAt(pos - 1) == '/')) {
+			Object t = node.target(m.method);
+			if (t != null) return m.found(t, node.pattern, capture(m, ncaps, WILDCARD, pos, len));
+		}
+
+		return false;
+	}
+
+	protected int capture(Match m, int ncaps, String name, int start, int end) {
+		m.names[ncaps] = name;
+		m.caps[ncaps * 2] = start;
+		m.caps[ncaps * 2 + 1] = end;
+		return ncaps + 1;
+	}
+
+	/**
+	 * Inserts a route on the trie returning the number of parameters it uses
+	 * (counting the implicit sub-path wildcard).
+	 */
+	protected int insert(Node root, Route<T> route) {
+		String pattern = route.pattern;
+		if (pattern == null || pattern.length() == 0 || pattern.charAt(0) != '/')
+			throw new IllegalArgumentException("Route pattern must start with '/': " + pattern);
+
+		Node node = root;
+		int params = 0;
+		int pos = 0, len = pattern.length();
+		while (pos < len) {
+			char c = pattern.charAt(pos);
+			if (c == '{' && pattern.charAt(pos - 1) == '/') {
+				int end = pattern.indexOf('}', pos);
+				if (end < 0 || (end + 1 < len && pattern.charAt(end + 1) != '/') || end == pos + 1)
+					throw new IllegalArgumentException("Invalid parameter on route pattern: " + pattern);
+				String name = pattern.substring(pos + 1, end);
+				if (node.param == null) {
+					node.param = new Node();
+					node.param.paramName = name;
+				} else if (!node.param.paramName.equals(name)) {
+					throw new IllegalArgumentException("Parameter '" + name + "' conflicts with '" + node.param.paramName + "' on route pattern: " + pattern);
+				}
+				node = node.param;
+				params++;
+				pos = end + 1;
+			} else if (c == '*' && pattern.charAt(pos - 1) == '/') {
+				if (pos + 1 != len)
+					throw new IllegalArgumentException("Wildcard must be the last segment of route pattern: " + pattern);
+				if (node.wildcard == null) node.wildcard = new Node();
+				node = node.wildcard;
+				pos = len;
+			} else {
+				int end = pos;
+				while (end < len && !((pattern.charAt(end) == '{' || pattern.charAt(end) == '*') && pattern.charAt(end - 1) == '/')) end++;
+				node = insertLiteral(node, pattern.substring(pos, end));
+				pos = end;
+			}
+		}
+
+		if (node.pattern != null && !node.pattern.equals(pattern))
+			throw new IllegalArgumentException("Route pattern '" + pattern + "' conflicts with '" + node.pattern + "'");
+		node.pattern = pattern;
+		if (route.method == null) {
+			node.any = route.target;
+		} else {
+			if (node.byMethod == null) node.byMethod = new Object[Method.values().length];
+			node.byMethod[route.method.ordinal()] = route.target;
+		}
+
+		return params + 1;
+	}
+
+	protected Node insertLiteral(Node node, String literal) {
+		while (literal.length() > 0) {
+			char c = literal.charAt(0);
+			int i = 0;
+			while (i < node.indices.length && node.indices[i] != c) i++;
+
+			if (i == node.indices.length) {
+				Node child = new Node();
+				child.label = literal.toCharArray();
+				node.addChild(child);
+				return child;
+			}
+
+			Node child = node.children[i];
+			int l = 0, max = Math.min(child.label.length, literal.length());
+			while (l < max && child.label[l] == literal.charAt(l)) l++;
+
+			if (l < child.label.length) {
+				// Split the child on the common prefix
+				Node mid = new Node();
+				mid.label = Arrays.copyOf(child.label, l);
+				child.label = Arrays.copyOfRange(child.label, l, child.label.length);
+				mid.addChild(child);
+				node.children[i] = mid;
+				child = mid;
+			}
+
+			node = child;
+			literal = literal.substring(l);
+		}
+
+		return node;
+	}
+
+	protected static class Route<T> {
+		protected final Method method;
+		protected final String pattern;
+		protected final T target;
+
+		protected Route(Method method, String pattern, T target) {
+			this.method = method;
+			this.pattern = pattern;
+			this.target = target;
+		}
+	}
+
+	protected static class Node {
+		protected char[] label = new char[0];
+		protected char[] indices = new char[0];
+		protected Node[] children = new Node[0];
+		protected Node param;
+		protected String paramName;
+		protected Node wildcard;
+		protected String pattern;
+		protected Object any;
+		protected Object[] byMethod;
+		protected int maxParams;
+
+		protected void addChild(Node child) {
+			indices = Arrays.copyOf(indices, indices.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			indices[indices.length - 1] = child.label[0];
+			children[children.length - 1] = child;
+		}
+
+		protected Object target(Method method) {
+			if (method != null && byMethod != null) {
+				Object t = byMethod[method.ordinal()];
+				if (t == null && method == Method.HEAD) t = byMethod[Method.GET.ordinal()];
+				if (t != null) return t;
+			}
+			return any;
+		}
+	}
+
+	protected static class Match {
+		protected final Method method;
+		protected final String path;
+		protected final int[] caps;
+		protected final String[] names;
+		protected Object target;
+		protected String pattern;
+		protected int ncaps;
+		protected boolean subPaths;
+
+		protected Match(Method method, String path, int[] caps, String[] names) {
+			this.method = method;
+			this.path = path;
+			this.caps = caps;
+			this.names = names;
+		}
+
+		protected boolean found(Object target, String pattern, int ncaps) {
+			this.target = target;
+			this.pattern = pattern;
+			this.ncaps = ncaps;
+			return true;
+		}
+	}
+}
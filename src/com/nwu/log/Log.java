@@ -193,6 +193,17 @@ public class Log {
 		return java.util.logging.Level.OFF;
 	}
 	
+	/**
+	 * Checks if a message of the given type would actually be logged (to avoid
+	 * building messages that won't be used).
+	 * 
+	 * @param type Type of message
+	 * @return True if it would be logged.
+	 */
+	public boolean isLoggable(Type type) {
+		return type != Type.OFF && lOG != null && lOG.isLoggable(getOutputType2JavaLevel(type));
+	}
+	
 	public java.util.logging.Logger getLogLogger() {
 		return this.lOG;
 	}
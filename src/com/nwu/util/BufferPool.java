@@ -0,0 +1,431 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of byte arrays and ByteBuffers (optionally direct) in power of two
+ * size classes, from MIN_SIZE to MAX_SIZE. Each thread keeps a couple of
+ * buffers per size class (except virtual threads) falling back to a bounded
+ * pool shared by all threads, so buffers are reused instead of garbage
+ * collected regardless of the request rate.
+ * <br><br>
+ * Every acquired buffer should be released once, and not used afterwards.
+ * A buffer that isn't released is simply garbage collected. In debug mode
+ * the pool keeps where each outstanding buffer was acquired (see getLeaks())
+ * and ignores (reporting it) a buffer released twice or not acquired from
+ * it.
+ * <br><br>
+ * The default pool is configured by the system properties
+ * nwu.bufferpool.direct (off-heap ByteBuffers) and nwu.bufferpool.debug.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class BufferPool {
+	public static final int MIN_SIZE = 512;
+	public static final int MAX_SIZE = 64 * 1024;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+	protected static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+	protected static final int THREAD_CACHE_SIZE = 2;
+
+	private static final Logger LOG = Logger.getLogger(BufferPool.class.getName());
+	private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+	private static final BufferPool DEFAULT = new BufferPool(Boolean.getBoolean("nwu.bufferpool.direct"), Boolean.getBoolean("nwu.bufferpool.debug"), DEFAULT_MAX_POOLED_BYTES);
+
+	protected final SizeClass[] arrays = new SizeClass[CLASSES];
+	protected final SizeClass[] buffers = new SizeClass[CLASSES];
+	protected final boolean direct;
+	protected final boolean debug;
+	protected final Map<Object, Throwable> outstanding = new IdentityHashMap<Object, Throwable>();
+	protected final LongAdder oversized = new LongAdder();
+	protected final LongAdder invalidReleases = new LongAdder();
+
+	/**
+	 * The buffers of one size (either arrays or ByteBuffers).
+	 */
+	public class SizeClass {
+		protected final int size;
+		protected final boolean byteBuffers;
+		protected final Object[] stack;
+		protected int count = 0;
+		protected final ThreadLocal<Object[]> threadCache = new ThreadLocal<Object[]>() {
+			@Override
+			protected Object[] initialValue() {
+				return new Object[THREAD_CACHE_SIZE];
+			}
+		};
+		protected final LongAdder hits = new LongAdder();
+		protected final LongAdder misses = new LongAdder();
+		protected final LongAdder releases = new LongAdder();
+		protected final LongAdder drops = new LongAdder();
+
+		protected SizeClass(int size, boolean byteBuffers, long maxPooledBytes) {
+			this.size = size;
+			this.byteBuffers = byteBuffers;
+			this.stack = new Object[(int) Math.max(THREAD_CACHE_SIZE, maxPooledBytes / size)];
+		}
+
+		protected Object allocate() {
+			if (!byteBuffers) return new byte[size];
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+
+		protected synchronized Object pop() {
+			if (count == 0) return null;
+			Object buffer = stack[--count];
+			stack[count] = null;
+			return buffer;
+		}
+
+		protected synchronized boolean push(Object buffer) {
+			if (count == stack.length) return false;
+			stack[count++] = buffer;
+			return true;
+		}
+
+		protected Object take() {
+			Object buffer = null;
+			if (isThreadCached()) {
+				Object[] cache = threadCache.get();
+				for (int i = 0; i < cache.length && buffer == null; i++) {
+					buffer = cache[i];
+					cache[i] = null;
+				}
+			}
+			if (buffer == null) buffer = pop();
+			if (buffer == null) {
+				misses.increment();
+				buffer = allocate();
+			} else {
+				hits.increment();
+			}
+			if (debug) {
+				synchronized (outstanding) {
+					outstanding.put(buffer, new Throwable("Buffer of " + size + " bytes acquired"));
+				}
+			}
+			return buffer;
+		}
+
+		protected void give(Object buffer) {
+			if (debug) {
+				Throwable acquired;
+				synchronized (outstanding) {
+					acquired = outstanding.remove(buffer);
+				}
+				if (acquired == null) {
+					invalidReleases.increment();
+					LOG.log(Level.WARNING, "Invalid buffer release", new IllegalStateException("Buffer of " + size + " bytes released twice or not acquired from the pool"));
+					return;
+				}
+			}
+			releases.increment();
+			if (isThreadCached()) {
+				Object[] cache = threadCache.get();
+				for (int i = 0; i < cache.length; i++) {
+					if (cache[i] == null) {
+						cache[i] = buffer;
+						return;
+					}
+				}
+			}
+			if (!push(buffer)) drops.increment();
+		}
+
+		/**
+		 * Moves the buffers cached by the current thread to the shared pool.
+		 */
+		protected void flushThreadCache() {
+			Object[] cache = threadCache.get();
+			for (int i = 0; i < cache.length; i++) {
+				if (cache[i] != null) {
+					if (!push(cache[i])) drops.increment();
+					cache[i] = null;
+				}
+			}
+		}
+
+		/**
+		 * The size, in bytes, of the buffers.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * The number of buffers on the shared pool (not counting the ones
+		 * cached by each thread).
+		 */
+		public synchronized int getPooled() {
+			return count;
+		}
+
+		/**
+		 * The maximum number of buffers on the shared pool.
+		 */
+		public int getMaxPooled() {
+			return stack.length;
+		}
+
+		/**
+		 * The number of buffers acquired that were reused.
+		 */
+		public long getHits() {
+			return hits.sum();
+		}
+
+		/**
+		 * The number of buffers acquired that had to be allocated.
+		 */
+		public long getMisses() {
+			return misses.sum();
+		}
+
+		/**
+		 * The number of released buffers discarded since the pool was full.
+		 */
+		public long getDrops() {
+			return drops.sum();
+		}
+
+		/**
+		 * The number of acquired buffers not yet released.
+		 */
+		public long getOutstanding() {
+			return hits.sum() + misses.sum() - releases.sum();
+		}
+	}
+
+	/**
+	 * Returns the default pool, shared by all the servers.
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param direct If ByteBuffers should be allocated off-heap.
+	 * @param debug If the pool should keep track of the outstanding buffers.
+	 * @param maxPooledBytes The maximum bytes kept by the shared pool for
+	 * each size class (of arrays and of ByteBuffers).
+	 */
+	public BufferPool(boolean direct, boolean debug, long maxPooledBytes) {
+		this.direct = direct;
+		this.debug = debug;
+		for (int i = 0; i < CLASSES; i++) {
+			arrays[i] = new SizeClass(MIN_SIZE << i, false, maxPooledBytes);
+			buffers[i] = new SizeClass(MIN_SIZE << i, true, maxPooledBytes);
+		}
+	}
+
+	/**
+	 * Acquires a byte array with, at least, size bytes (an array larger than
+	 * MAX_SIZE is allocated and not pooled).
+	 *
+	 * @param size The minimum size.
+	 * @return The byte array (with unspecified contents).
+	 */
+	public byte[] acquireArray(int size) {
+		int i = classFor(size);
+		if (i < 0) {
+			oversized.increment();
+			return new byte[size];
+		}
+		return (byte[]) arrays[i].take();
+	}
+
+	/**
+	 * Returns an array to the pool.
+	 *
+	 * @param array The array (ignored if null or not of a pooled size).
+	 */
+	public void release(byte[] array) {
+		if (array == null) return;
+		int i = classOf(array.length);
+		if (i >= 0) arrays[i].give(array);
+	}
+
+	/**
+	 * Acquires a cleared ByteBuffer (direct if the pool is) with a capacity
+	 * of, at least, size bytes (a buffer larger than MAX_SIZE is allocated
+	 * and not pooled).
+	 *
+	 * @param size The minimum capacity.
+	 * @return The ByteBuffer (with unspecified contents).
+	 */
+	public ByteBuffer acquire(int size) {
+		int i = classFor(size);
+		if (i < 0) {
+			oversized.increment();
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		return (ByteBuffer) buffers[i].take();
+	}
+
+	/**
+	 * Returns a ByteBuffer to the pool.
+	 *
+	 * @param buffer The buffer (ignored if null, read-only or not of a
+	 * pooled kind and capacity).
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly() || buffer.isDirect() != direct || buffer.hasArray() && buffer.arrayOffset() != 0) return;
+		int i = classOf(buffer.capacity());
+		if (i >= 0) {
+			buffer.clear();
+			buffers[i].give(buffer);
+		}
+	}
+
+	/**
+	 * Moves the buffers cached by the current thread to the shared pool. To
+	 * be called by a thread that is about to end (or to stay idle).
+	 */
+	public void flushThreadCache() {
+		for (int i = 0; i < CLASSES; i++) {
+			arrays[i].flushThreadCache();
+			buffers[i].flushThreadCache();
+		}
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * The size classes of byte arrays.
+	 */
+	public List<SizeClass> getArrayClasses() {
+		return Collections.unmodifiableList(Arrays.asList(arrays));
+	}
+
+	/**
+	 * The size classes of ByteBuffers.
+	 */
+	public List<SizeClass> getBufferClasses() {
+		return Collections.unmodifiableList(Arrays.asList(buffers));
+	}
+
+	/**
+	 * The number of acquired buffers larger than MAX_SIZE (not pooled).
+	 */
+	public long getOversized() {
+		return oversized.sum();
+	}
+
+	/**
+	 * The number of buffers released twice or not acquired from this pool
+	 * (only detected in debug mode).
+	 */
+	public long getInvalidReleases() {
+		return invalidReleases.sum();
+	}
+
+	/**
+	 * In debug mode, returns where the outstanding buffers were acquired (the
+	 * calling stack frames) and how many each. Buffers that keep adding up on
+	 * the same place are probably not being released.
+	 *
+	 * @return The number of outstanding buffers by acquiring site (empty if
+	 * not in debug mode).
+	 */
+	public Map<String, Integer> getLeaks() {
+		List<Throwable> sites;
+		synchronized (outstanding) {
+			sites = new ArrayList<Throwable>(outstanding.values());
+		}
+
+		Map<String, Integer> leaks = new TreeMap<String, Integer>();
+		for (Throwable site : sites) {
+			StringBuilder sb = new StringBuilder();
+			int frames = 0;
+			for (StackTraceElement e : site.getStackTrace()) {
+				if (e.getClassName().startsWith(BufferPool.class.getName())) continue;
+				if (frames > 0) sb.append(" < ");
+				sb.append(e.toString());
+				if (++frames == 3) break;
+			}
+			String key = sb.toString();
+			Integer n = leaks.get(key);
+			leaks.put(key, (n == null) ? 1 : n + 1);
+		}
+		return leaks;
+	}
+
+	/**
+	 * Returns the index of the smallest size class with, at least, size bytes
+	 * (or -1 if larger than MAX_SIZE).
+	 */
+	protected static int classFor(int size) {
+		if (size > MAX_SIZE) return -1;
+		if (size <= MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	/**
+	 * Returns the index of the size class of exactly size bytes (or -1).
+	 */
+	protected static int classOf(int size) {
+		if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1) return -1;
+		return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	/**
+	 * Virtual threads are short lived and too many to keep their own buffers.
+	 */
+	protected static boolean isThreadCached() {
+		if (IS_VIRTUAL == null) return true;
+		try {
+			return !(boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Thread.isVirtual() using reflection so it can still be compiled and run
+	 * on older runtimes.
+	 */
+	private static MethodHandle isVirtualHandle() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
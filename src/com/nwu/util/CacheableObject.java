@@ -25,6 +25,16 @@ package com.nwu.util;
  * @see com.attrmon.core.SimpleCache
  */
 public abstract class CacheableObject {
+	
+	/**
+	 * The weight of this object, compared with SimpleCacheConfig.getMaxWeight() 
+	 * (e.g. the size in bytes). By default 1.
+	 * 
+	 * @return The weight.
+	 */
+	public long getWeight() {
+		return 1;
+	}
 
 }
 
@@ -0,0 +1,123 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.util;
+
+/**
+ * A Count-Min sketch with 4-bit counters estimating how often keys were
+ * accessed recently (the TinyLFU admission filter of SimpleCache). Counters
+ * are halved once the number of increments reaches 10 times the table size so
+ * old popularity fades.
+ * <br><br>
+ * Not thread-safe: callers should hold their own lock.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
+public class FrequencySketch {
+	protected static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	protected static final long RESET_MASK = 0x7777777777777777L;
+
+	protected long[] table = new long[0];
+	protected int tableMask;
+	protected int sampleSize;
+	protected int size;
+
+	/**
+	 * Grows the sketch to track, at least, a given number of keys.
+	 *
+	 * @param maximum The expected number of keys.
+	 */
+	public void ensureCapacity(long maximum) {
+		int max = (int) Math.min(Math.max(maximum, 16), 1 << 30);
+		if (table.length >= max) return;
+
+		table = new long[Integer.highestOneBit(max - 1) << 1];
+		tableMask = table.length - 1;
+		sampleSize = 10 * max;
+		size = 0;
+	}
+
+	/**
+	 * Returns the estimated number of accesses of a key (0 to 15).
+	 *
+	 * @param hashCode The key hash code.
+	 */
+	public int frequency(int hashCode) {
+		if (table.length == 0) return 0;
+
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Counts an access of a key.
+	 *
+	 * @param hashCode The key hash code.
+	 */
+	public void increment(int hashCode) {
+		if (table.length == 0) return;
+
+		int hash = spread(hashCode);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+
+		if (added && (++size >= sampleSize)) reset();
+	}
+
+	protected boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = (0xfL << offset);
+		if ((table[i] & mask) != mask) {
+			table[i] += (1L << offset);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	protected void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = size / 2;
+	}
+
+	protected int indexOf(int item, int i) {
+		long hash = (item + SEED[i]) * SEED[i];
+		hash += (hash >>> 32);
+		return ((int) hash) & tableMask;
+	}
+
+	protected static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
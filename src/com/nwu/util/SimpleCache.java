@@ -1,4 +1,4 @@
-/**       
+/**
  *	   Licensed to the Apache Software Foundation (ASF) under one
  *     or more contributor license agreements.  See the NOTICE file
  *     distributed with this work for additional information
@@ -18,108 +18,449 @@
  */
 package com.nwu.util;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.nwu.util.SimpleCacheConfig.EvictionPolicy;
 
 /**
  * This is a simple cache implementation to hold objects between counter cycles
- * 
+ * <br><br>
+ * Thread-safe: lookups only touch a ConcurrentHashMap (access order is recorded
+ * if the policy lock is free) while writes, evictions and expirations are done
+ * under the policy lock. Objects are evicted when the configured maximum
+ * number of entries or weight is exceeded (LRU or W-TinyLFU) and expired
+ * using a timer wheel as the counter advances (on writes or cleanUp(), e.g.
+ * by a TimeTask).
+ *
  * @author Nuno Aguiar <nuno@aguiar.name>
  *
  */
 public class SimpleCache {
-	protected HashMap<String, CacheableObject> cache = new HashMap<String,CacheableObject>();
-	protected HashMap<String, Long> cacheAge = new HashMap<String,Long>();
-	protected HashMap<String, Long> cacheLimitAge = new HashMap<String,Long>();
-	
+	protected static final long NEVER = Long.MAX_VALUE;
+	protected static final int WINDOW = 0;
+	protected static final int PROBATION = 1;
+	protected static final int PROTECTED = 2;
+	/**
+	 * Maximum number of objects expired by a write (the rest is left to cleanUp).
+	 */
+	protected static final int WRITE_EXPIRE_BATCH = 64;
+
+	protected final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	protected final ReentrantLock policyLock = new ReentrantLock();
+	protected final EvictionPolicy policy;
+	protected final TimerWheel<Entry> wheel;
+	protected final FrequencySketch sketch = new FrequencySketch();
+	protected final AccessDeque window = new AccessDeque();
+	protected final AccessDeque probation = new AccessDeque();
+	protected final AccessDeque protect = new AccessDeque();
+
+	protected final LongAdder hits = new LongAdder();
+	protected final LongAdder misses = new LongAdder();
+	protected final LongAdder evictions = new LongAdder();
+	protected final LongAdder expirations = new LongAdder();
+	protected volatile long weight = 0;
+
 	protected SimpleCacheConfig conf;
-	
+
+	/**
+	 * The single record kept for each cached key.
+	 */
+	protected static final class Entry extends TimerWheel.Node {
+		protected final String key;
+		protected final CacheableObject value;
+		protected final long weight;
+		protected int queue = WINDOW;
+		protected boolean alive = true;
+		protected Entry prevInAccess;
+		protected Entry nextInAccess;
+
+		protected Entry(String key, CacheableObject value, long weight, long expiresAt) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * An access ordered list of entries (least recent first).
+	 */
+	protected static final class AccessDeque {
+		protected Entry head;
+		protected Entry tail;
+		protected long count;
+		protected long weight;
+
+		protected void add(Entry e) {
+			e.prevInAccess = tail;
+			e.nextInAccess = null;
+			if (tail == null) head = e; else tail.nextInAccess = e;
+			tail = e;
+			count++;
+			weight += e.weight;
+		}
+
+		protected void remove(Entry e) {
+			if (e.prevInAccess == null) head = e.nextInAccess; else e.prevInAccess.nextInAccess = e.nextInAccess;
+			if (e.nextInAccess == null) tail = e.prevInAccess; else e.nextInAccess.prevInAccess = e.prevInAccess;
+			e.prevInAccess = null;
+			e.nextInAccess = null;
+			count--;
+			weight -= e.weight;
+		}
+
+		protected void moveToBack(Entry e) {
+			if (e != tail) {
+				remove(e);
+				add(e);
+			}
+		}
+
+		protected long size(boolean weighted) {
+			return weighted ? weight : count;
+		}
+	}
+
 	public SimpleCache(SimpleCacheConfig conf) {
 		this.conf = conf;
+		this.policy = (conf.getEvictionPolicy() != null) ? conf.getEvictionPolicy() : EvictionPolicy.LRU;
+		this.wheel = new TimerWheel<Entry>(conf.getCurrentCounter());
 	}
-	
+
 	public int getNumberOfCurrentCachedObjects() {
 		return cache.size();
 	}
-	
+
 	/**
 	 * Is the specified key still valid given the limits of "age" in cache parameterized?
-	 * 
+	 *
 	 * @param key The cache key
 	 * @return True if it's valid. False otherwise.
 	 */
 	protected boolean stillYoungEnough(String key) {
-		if (cacheAge.containsKey(key)) {
-			if (cacheLimitAge.containsKey(key)) {
-				if (cacheLimitAge.get(key).longValue() - ( conf.getCurrentCounter() - ((Long) (cacheAge.get(key))).longValue() ) <= 0 ) {
-					return false;
-				} else {
-					return true;
-				}
-			} else {
-				if (conf.getLimitObjectInCacheAge() < 0) {
-					return true;
-				} else if ( conf.getLimitObjectInCacheAge() - ( conf.getCurrentCounter() - ((Long) (cacheAge.get(key))).longValue() ) <= 0 ) {
-					return false;
-				} else {
-					return true;
-				}			
-			}
+		Entry e = cache.get(key);
+		return e != null && stillYoungEnough(e, conf.getCurrentCounter());
+	}
 
-		} else {
-			return false;
-		}
+	protected boolean stillYoungEnough(Entry e, long now) {
+		return e.expiresAt == NEVER || now < e.expiresAt;
 	}
-	
+
 	/**
 	 * Adds an object to the cache.
-	 * 
+	 *
 	 * @param key The key to reference the object to be added to cache
 	 * @param obj The object to be cached (should be extended from CacheableObject)
 	 */
 	public void addObjectToCache(String key, CacheableObject obj) {
-		cache.put(key, obj);
-		cacheAge.put(key, conf.getCurrentCounter());
+		put(key, obj, conf.getLimitObjectInCacheAge());
 	}
-	
+
 	/**
 	 * Adds an object to the cache but with a implicit time limit
-	 * 
+	 *
 	 * @param key
 	 * @param obj
 	 * @param timeLimit This limit is defined in number of counter cycles
 	 */
 	public void addObjectToCacheWithTimeLimit(String key, CacheableObject obj, long timeLimit) {
-		addObjectToCache(key, obj);
-		cacheLimitAge.put(key, new Long(timeLimit));
+		put(key, obj, timeLimit);
 	}
-	
-	public boolean isObjectStillValid(String key) {
-		boolean stillValid = false;
-		if (cache.containsKey(key)) {
-			if (stillYoungEnough(key)) {
-				stillValid = true;
-			} else {
-				invalidateObject(key);
+
+	protected void put(String key, CacheableObject obj, long timeLimit) {
+		long now = conf.getCurrentCounter();
+		long expiresAt = (timeLimit < 0) ? NEVER : now + timeLimit;
+		Entry e = new Entry(key, obj, Math.max(0, obj.getWeight()), expiresAt);
+
+		policyLock.lock();
+		try {
+			expire(now, WRITE_EXPIRE_BATCH);
+
+			Entry old = cache.put(key, e);
+			if (old != null) unlink(old);
+
+			window.add(e);
+			weight += e.weight;
+			if (expiresAt != NEVER) wheel.schedule(e, expiresAt);
+			if (policy == EvictionPolicy.TINY_LFU && isBounded()) {
+				sketch.ensureCapacity(Math.max(conf.getMaxEntries(), cache.size()));
+				sketch.increment(key.hashCode());
 			}
+
+			evict();
+		} finally {
+			policyLock.unlock();
 		}
-			
-		return stillValid;
 	}
-	
+
+	public boolean isObjectStillValid(String key) {
+		Entry e = cache.get(key);
+		if (e == null) return false;
+
+		if (stillYoungEnough(e, conf.getCurrentCounter())) {
+			return true;
+		} else {
+			remove(e, expirations);
+			return false;
+		}
+	}
+
 	public void invalidateObject(String key) {
-		cache.remove(key);
-		cacheAge.remove(key);
-		if (cacheLimitAge.containsKey(key)) {
-			cacheLimitAge.remove(key);
+		Entry e = cache.get(key);
+		if (e != null) remove(e, null);
+	}
+
+	/**
+	 * Removes all objects from the cache.
+	 */
+	public void invalidateAll() {
+		for (Entry e : cache.values()) {
+			remove(e, null);
 		}
 	}
-	
+
 	public CacheableObject getCachedObject(String key) {
-		if (isObjectStillValid(key)) {
-			return cache.get(key);
-		} else {
+		Entry e = cache.get(key);
+		if (e == null) {
+			misses.increment();
+			return null;
+		}
+
+		if (!stillYoungEnough(e, conf.getCurrentCounter())) {
+			misses.increment();
+			remove(e, expirations);
 			return null;
 		}
+
+		hits.increment();
+		// Access order is best effort: skipped if another thread is changing the cache
+		if (policyLock.tryLock()) {
+			try {
+				if (e.alive) onAccess(e);
+			} finally {
+				policyLock.unlock();
+			}
+		}
+		return e.value;
+	}
+
+	/**
+	 * Removes the expired objects and enforces the limits (also done on every
+	 * write).
+	 */
+	public void cleanUp() {
+		policyLock.lock();
+		try {
+			expire(conf.getCurrentCounter(), Integer.MAX_VALUE);
+			evict();
+		} finally {
+			policyLock.unlock();
+		}
 	}
 	
+	/**
+	 * Removes, at most, maxExpirations expired objects and enforces the limits
+	 * so the lock is only held for a bounded time.
+	 * 
+	 * @param maxExpirations The maximum number of objects to expire.
+	 * @return True if all expired objects were removed, false if cleanUp 
+	 * should be called again.
+	 */
+	public boolean cleanUp(int maxExpirations) {
+		long now = conf.getCurrentCounter();
+		policyLock.lock();
+		try {
+			expire(now, maxExpirations);
+			evict();
+			return wheel.getCurrentTick() >= now;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * The ratio of lookups (getCachedObject) that found a valid object.
+	 *
+	 * @return The hit ratio (0 to 1).
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	/**
+	 * The number of objects removed to keep the cache within its limits.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * The number of objects removed due to their age.
+	 */
+	public long getExpirationCount() {
+		return expirations.sum();
+	}
+
+	/**
+	 * The current sum of the cached objects weight.
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+	public SimpleCacheConfig getConfig() {
+		return conf;
+	}
+
+	protected void remove(Entry e, LongAdder counter) {
+		policyLock.lock();
+		try {
+			if (cache.remove(e.key, e)) {
+				unlink(e);
+				if (counter != null) counter.increment();
+			}
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry, already removed from the map, from the policy structures.
+	 */
+	protected void unlink(Entry e) {
+		if (!e.alive) return;
+		e.alive = false;
+
+		switch (e.queue) {
+		case PROBATION: probation.remove(e); break;
+		case PROTECTED: protect.remove(e); break;
+		default: window.remove(e);
+		}
+		wheel.deschedule(e);
+		weight -= e.weight;
+	}
+
+	protected void expire(long now, int limit) {
+		wheel.advance(now, limit, e -> {
+			if (cache.remove(e.key, e)) {
+				unlink(e);
+				expirations.increment();
+			}
+		});
+	}
+
+	protected boolean isBounded() {
+		return conf.getMaxEntries() > 0 || conf.getMaxWeight() > 0;
+	}
+
+	protected boolean overCapacity() {
+		return (conf.getMaxEntries() > 0 && cache.size() > conf.getMaxEntries())
+			|| (conf.getMaxWeight() > 0 && weight > conf.getMaxWeight());
+	}
+
+	protected void onAccess(Entry e) {
+		if (policy == EvictionPolicy.LRU || !isBounded()) {
+			window.moveToBack(e);
+			return;
+		}
+
+		sketch.increment(e.key.hashCode());
+		switch (e.queue) {
+		case WINDOW:
+			window.moveToBack(e);
+			break;
+		case PROBATION:
+			probation.remove(e);
+			e.queue = PROTECTED;
+			protect.add(e);
+
+			boolean weighted = conf.getMaxWeight() > 0;
+			long maxProtected = (long) ((capacity() - maxWindow()) * 0.8);
+			while (protect.size(weighted) > maxProtected && protect.head != e) {
+				Entry demoted = protect.head;
+				protect.remove(demoted);
+				demoted.queue = PROBATION;
+				probation.add(demoted);
+			}
+			break;
+		case PROTECTED:
+			protect.moveToBack(e);
+			break;
+		}
+	}
+
+	protected long capacity() {
+		return (conf.getMaxWeight() > 0) ? conf.getMaxWeight() : conf.getMaxEntries();
+	}
+
+	protected long maxWindow() {
+		return Math.max(1, capacity() / 100);
+	}
+
+	/**
+	 * Evicts entries while over the limits.
+	 */
+	protected void evict() {
+		if (!isBounded()) return;
+
+		if (policy == EvictionPolicy.LRU) {
+			while (overCapacity() && window.head != null) {
+				evict(window.head);
+			}
+			return;
+		}
+
+		// Entries leaving the window become candidates to the main cache
+		boolean weighted = conf.getMaxWeight() > 0;
+		long maxWindow = maxWindow();
+		int candidates = 0;
+		while (window.size(weighted) > maxWindow && window.head != null) {
+			Entry e = window.head;
+			window.remove(e);
+			e.queue = PROBATION;
+			probation.add(e);
+			candidates++;
+		}
+
+		// Each candidate is only admitted if more frequent than the probation victim
+		while (overCapacity()) {
+			Entry victim = probation.head;
+			if (victim == null) {
+				victim = (protect.head != null) ? protect.head : window.head;
+				if (victim == null) break;
+				evict(victim);
+				continue;
+			}
+
+			Entry candidate = (candidates > 0) ? probation.tail : null;
+			if (candidate == null || candidate == victim) {
+				if (candidate != null) candidates--;
+				evict(victim);
+			} else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+				evict(victim);
+			} else {
+				candidates--;
+				evict(candidate);
+			}
+		}
+	}
+
+	protected void evict(Entry e) {
+		if (cache.remove(e.key, e)) {
+			evictions.increment();
+		}
+		unlink(e);
+	}
 }
@@ -18,9 +18,37 @@
  */
 package com.nwu.util;
 
+/**
+ * The configuration of a SimpleCache.
+ * <br><br>
+ * Ages are measured in counter cycles. The counter is either advanced manually
+ * (setCurrentCounter) or, if tickMillis is set, from the clock (one cycle
+ * per tickMillis).
+ * 
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
 public class SimpleCacheConfig {
-	protected long currentCounter;
+	public enum EvictionPolicy {
+		/**
+		 * Evicts the least recently used object.
+		 */
+		LRU,
+		/**
+		 * Window TinyLFU: recent objects are kept on a small LRU window and
+		 * only admitted to the main cache if accessed more frequently than the
+		 * object they would replace.
+		 */
+		TINY_LFU
+	}
+	
+	protected volatile long currentCounter;
 	protected long limitObjectInCacheAge;
+	protected long maxEntries = 0;
+	protected long maxWeight = 0;
+	protected EvictionPolicy evictionPolicy = EvictionPolicy.TINY_LFU;
+	protected long tickMillis = 0;
+	protected long tickOrigin;
 
 	public long getLimitObjectInCacheAge() {
 		return limitObjectInCacheAge;
@@ -31,6 +59,9 @@ public class SimpleCacheConfig {
 	}
 
 	public long getCurrentCounter() {
+		if (tickMillis > 0) {
+			return currentCounter + (System.currentTimeMillis() - tickOrigin) / tickMillis;
+		}
 		return currentCounter;
 	}
 
@@ -38,6 +69,56 @@ public class SimpleCacheConfig {
 		this.currentCounter = currentCounter;
 	}
 	
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets the maximum number of cached objects (0 for no limit).
+	 */
+	public void setMaxEntries(long maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Sets the maximum sum of the cached objects weight (0 for no limit).
+	 * 
+	 * @see com.nwu.util.CacheableObject#getWeight()
+	 */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Sets the eviction policy when the limits are reached (only used when 
+	 * creating a SimpleCache).
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Sets the duration, in ms, of each counter cycle so the counter advances 
+	 * by itself (0 to only advance on setCurrentCounter).
+	 */
+	public void setTickMillis(long tickMillis) {
+		this.currentCounter = getCurrentCounter();
+		this.tickOrigin = System.currentTimeMillis();
+		this.tickMillis = tickMillis;
+	}
+	
 	public SimpleCacheConfig() {
 		
 	}
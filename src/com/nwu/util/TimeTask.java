@@ -1,4 +1,4 @@
-/**       
+/**
  *	   Licensed to the Apache Software Foundation (ASF) under one
  *     or more contributor license agreements.  See the NOTICE file
  *     distributed with this work for additional information
@@ -18,18 +18,161 @@
  */
 package com.nwu.util;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Maintenance task for one or more SimpleCache instances. On each run it
+ * advances the counter of the caches that use a manual counter (one cycle per
+ * run) and removes the expired objects in batches of, at most, batchSize
+ * objects so the cache lock is never held for long by the sweep.
+ * <br><br>
+ * Usage:
+ * <pre>
+ * TimeTask task = new TimeTask();
+ * task.addCache(cache);
+ * task.start(1000);
+ * </pre>
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ */
 public class TimeTask extends TimerTask {
-    protected static SimpleCache cache = null;
-	
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private static final Logger LOG = Logger.getLogger(TimeTask.class.getName());
+
+	protected final List<SimpleCache> caches = new CopyOnWriteArrayList<SimpleCache>();
+	protected volatile int batchSize;
+	protected volatile boolean advanceCounter = true;
+	protected final AtomicLong runs = new AtomicLong();
+	protected volatile long lastRunNanos = 0;
+	protected Timer timer;
+
+	public TimeTask() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize The maximum number of objects expired while holding
+	 * the lock of a cache.
+	 */
+	public TimeTask(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Adds a cache to be maintained by this task.
+	 *
+	 * @param cache The SimpleCache.
+	 */
+	public void addCache(SimpleCache cache) {
+		if (cache != null && !caches.contains(cache)) caches.add(cache);
+	}
+
+	public void removeCache(SimpleCache cache) {
+		caches.remove(cache);
+	}
+
+	public List<SimpleCache> getCaches() {
+		return Collections.unmodifiableList(caches);
+	}
+
+	/**
+	 * Sets if the counter of caches without tickMillis should be advanced
+	 * one cycle on each run (true by default).
+	 */
+	public void setAdvanceCounter(boolean advanceCounter) {
+		this.advanceCounter = advanceCounter;
+	}
+
+	public boolean isAdvanceCounter() {
+		return advanceCounter;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * The number of times the task has run.
+	 */
+	public long getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * The duration, in nanoseconds, of the last run.
+	 */
+	public long getLastRunNanos() {
+		return lastRunNanos;
+	}
+
+	/**
+	 * Starts running this task, on a daemon thread, every periodMillis. It
+	 * can be started again after stopped.
+	 *
+	 * @param periodMillis The period in ms (e.g. the counter cycle duration).
+	 */
+	public synchronized void start(long periodMillis) {
+		if (timer == null) {
+			timer = new Timer("SimpleCache maintenance", true);
+			// a TimerTask can only be scheduled once
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					TimeTask.this.run();
+				}
+			}, periodMillis, periodMillis);
+		}
+	}
+
+	/**
+	 * Stops running this task (started with start).
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-		if (cache == null) {
-			SimpleCacheConfig config = new SimpleCacheConfig();
+		long start = System.nanoTime();
+		Set<SimpleCacheConfig> advanced = Collections.newSetFromMap(new IdentityHashMap<SimpleCacheConfig, Boolean>());
+
+		for (SimpleCache cache : caches) {
+			SimpleCacheConfig conf = cache.getConfig();
+			// Caches might share the same configuration
+			if (advanceCounter && conf.getTickMillis() <= 0 && advanced.add(conf)) {
+				conf.setCurrentCounter(conf.getCurrentCounter() + 1);
+			}
+
+			try {
+				while (!cache.cleanUp(batchSize)) {
+					Thread.yield();
+				}
+			} catch (RuntimeException e) {
+				// Keep maintaining the other caches
+				LOG.log(Level.SEVERE, "Couldn't clean up a SimpleCache", e);
+			}
 		}
-		
+
+		runs.incrementAndGet();
+		lastRunNanos = System.nanoTime() - start;
 	}
 
 }
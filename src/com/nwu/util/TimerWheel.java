@@ -0,0 +1,230 @@
+/**
+ *	   Licensed to the Apache Software Foundation (ASF) under one
+ *     or more contributor license agreements.  See the NOTICE file
+ *     distributed with this work for additional information
+ *     regarding copyright ownership.  The ASF licenses this file
+ *     to you under the Apache License, Version 2.0 (the
+ *     "License"); you may not use this file except in compliance
+ *     with the License.  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing,
+ *     software distributed under the License is distributed on an
+ *     "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *     KIND, either express or implied.  See the License for the
+ *     specific language governing permissions and limitations
+ *     under the License.
+ */
+package com.nwu.util;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel to expire nodes by ticks (e.g. the SimpleCache
+ * counter cycles) in O(1) per node. Each level has 64 buckets, each bucket of
+ * a level spanning 64 times the ticks of the level below. Nodes are kept on the
+ * level that fits their delay and cascade to the lower levels as time advances.
+ * <br><br>
+ * Not thread-safe: callers should hold their own lock.
+ *
+ * @author Nuno Aguiar <nuno@aguiar.name>
+ *
+ * @param <N> The node type
+ */
+public class TimerWheel<N extends TimerWheel.Node> {
+	protected static final int BITS = 6;
+	protected static final int BUCKETS = 1 << BITS;
+	protected static final int LEVELS = 5;
+
+	protected final Node[][] wheel = new Node[LEVELS][BUCKETS];
+	protected long currentTick;
+	protected int size = 0;
+
+	/**
+	 * A node to be scheduled on the wheel.
+	 */
+	public static abstract class Node {
+		protected long expiresAt = Long.MAX_VALUE;
+		protected Node prevInWheel;
+		protected Node nextInWheel;
+
+		/**
+		 * The tick on which this node expires.
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		protected boolean isScheduled() {
+			return nextInWheel != null;
+		}
+	}
+
+	protected static final class Sentinel extends Node {
+		protected Sentinel() {
+			prevInWheel = this;
+			nextInWheel = this;
+		}
+	}
+
+	public TimerWheel(long currentTick) {
+		this.currentTick = currentTick;
+		for (int i = 0; i < LEVELS; i++) {
+			for (int j = 0; j < BUCKETS; j++) {
+				wheel[i][j] = new Sentinel();
+			}
+		}
+	}
+
+	public long getCurrentTick() {
+		return currentTick;
+	}
+
+	/**
+	 * Returns the number of scheduled nodes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules (or reschedules) a node to expire on a given tick.
+	 *
+	 * @param node The node.
+	 * @param expiresAt The expiration tick.
+	 */
+	public void schedule(N node, long expiresAt) {
+		if (node.isScheduled()) unlink(node);
+		node.expiresAt = expiresAt;
+		link(node);
+	}
+
+	/**
+	 * Removes a node from the wheel (if scheduled).
+	 *
+	 * @param node The node.
+	 */
+	public void deschedule(N node) {
+		if (node.isScheduled()) unlink(node);
+	}
+
+	/**
+	 * Advances the wheel to a given tick calling expired for all nodes that
+	 * expire until then (inclusive).
+	 *
+	 * @param tick The new current tick.
+	 * @param expired The consumer of the expired nodes (already descheduled).
+	 * @return The number of expired nodes.
+	 */
+	public int advance(long tick, Consumer<N> expired) {
+		return advance(tick, Integer.MAX_VALUE, expired);
+	}
+
+	/**
+	 * Advances the wheel towards a given tick expiring, at most, limit nodes.
+	 * If the limit is reached the wheel stops short of tick (see 
+	 * getCurrentTick()) and the next call continues from there.
+	 *
+	 * @param tick The new current tick.
+	 * @param limit The maximum number of nodes to expire.
+	 * @param expired The consumer of the expired nodes (already descheduled).
+	 * @return The number of expired nodes.
+	 */
+	public int advance(long tick, int limit, Consumer<N> expired) {
+		int count = 0;
+		while (currentTick < tick && count < limit) {
+			if (size == 0) {
+				currentTick = tick;
+				break;
+			}
+			// With a limit advance one tick at a time so it can stop at any point
+			long next = (limit == Integer.MAX_VALUE) ? tick : currentTick + 1;
+			count += step(next, limit - count, expired);
+			if (currentTick != next) break;
+		}
+		return count;
+	}
+
+	/**
+	 * Processes the buckets between the current tick and tick. If the limit is
+	 * reached the rest of the bucket is kept and the current tick is left
+	 * unchanged.
+	 */
+	@SuppressWarnings("unchecked")
+	protected int step(long tick, int limit, Consumer<N> expired) {
+		long previous = currentTick;
+		currentTick = tick;
+		int count = 0;
+
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = BITS * level;
+			long prevSlot = previous >>> shift;
+			long curSlot = tick >>> shift;
+			if (curSlot == prevSlot && level > 0) break;
+
+			long slots = Math.min(curSlot - prevSlot, BUCKETS - 1);
+			for (long s = 0; s <= slots; s++) {
+				Node sentinel = wheel[level][(int) ((prevSlot + s) & (BUCKETS - 1))];
+				Node node = sentinel.nextInWheel;
+				if (node == sentinel) continue;
+
+				// Detach the bucket so rescheduled nodes don't get processed again
+				Node last = sentinel.prevInWheel;
+				last.nextInWheel = null;
+				sentinel.prevInWheel = sentinel;
+				sentinel.nextInWheel = sentinel;
+
+				while (node != null) {
+					if (count >= limit) {
+						// Keep the rest of the bucket for the next call
+						node.prevInWheel = sentinel;
+						last.nextInWheel = sentinel.nextInWheel;
+						sentinel.nextInWheel.prevInWheel = last;
+						sentinel.nextInWheel = node;
+						currentTick = previous;
+						return count;
+					}
+
+					Node next = node.nextInWheel;
+					node.prevInWheel = null;
+					node.nextInWheel = null;
+					size--;
+
+					if (node.expiresAt <= tick) {
+						count++;
+						expired.accept((N) node);
+					} else {
+						link(node);
+					}
+					node = next;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	protected void link(Node node) {
+		long expiresAt = Math.max(node.expiresAt, currentTick);
+		long delay = expiresAt - currentTick;
+
+		int level = 0;
+		while (level < LEVELS - 1 && delay >= (1L << (BITS * (level + 1)))) level++;
+
+		Node sentinel = wheel[level][(int) ((expiresAt >>> (BITS * level)) & (BUCKETS - 1))];
+		node.prevInWheel = sentinel.prevInWheel;
+		node.nextInWheel = sentinel;
+		sentinel.prevInWheel.nextInWheel = node;
+		sentinel.prevInWheel = node;
+		size++;
+	}
+
+	protected void unlink(Node node) {
+		node.prevInWheel.nextInWheel = node.nextInWheel;
+		node.nextInWheel.prevInWheel = node.prevInWheel;
+		node.prevInWheel = null;
+		node.nextInWheel = null;
+		size--;
+	}
+}